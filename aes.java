@@ -10,7 +10,11 @@
 // March 2012
 
 import java.math.BigInteger;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
 public class aes {
@@ -25,17 +29,21 @@ public class aes {
     private static final byte[] log   = new byte[256];
     // inv table
     private static final byte[] inv   = new byte[256];
-    // substitution table (sbox)
-    private static final byte[] sbox  = new byte[256];
+    // substitution table (sbox), also used by the vector engine
+    static final byte[] sbox  = new byte[256];
     // inverse substitution table (inv sbox)
-    private static final byte[] invsb = new byte[256];
+    static final byte[] invsb = new byte[256];
     // rcon x^i for key expansion
     private static final byte[] rcon  = new byte[11];
-    // mix column matrix
-    private static final byte  mix[][] = {{ 2,3,1,1 }, { 1,2,3,1 }, { 1,1,2,3 }, { 3,1,1,2 }};
-    // inverse mix column matrix
-    private static final byte  mix_inv[][] = {{ 0x0E,0x0B,0x0D,0x09 },{ 0x09,0x0E,0x0B,0x0D }, 
-                                              { 0x0D,0x09,0x0E,0x0B },{ 0x0B,0x0D,0x09,0x0E }};   
+    // mix column matrix {{ 2,3,1,1 }, { 1,2,3,1 }, { 1,1,2,3 }, { 3,1,1,2 }}
+    // and its inverse {{ 0E,0B,0D,09 }, { 09,0E,0B,0D }, { 0D,09,0E,0B },
+    // { 0B,0D,09,0E }}: see aesGF
+    // T-tables: SubBytes+MixColumn of one byte for each row of a column
+    private static final int[] Te0 = new int[256], Te1 = new int[256];
+    private static final int[] Te2 = new int[256], Te3 = new int[256];
+    // inverse T-tables: invSubBytes+invMixColumn of one byte for each row
+    private static final int[] Td0 = new int[256], Td1 = new int[256];
+    private static final int[] Td2 = new int[256], Td3 = new int[256];
 
     /* ******************************************* */
     /* STATIC CODE - INITIALIZATIONS AND CONSTANTS */
@@ -98,25 +106,55 @@ public class aes {
         }
     }
 
+    // T-tables from sbox/invsb and the mix column matrices: a column is
+    // packed in an int with row 0 in the most significant byte.
+    static {
+        byte s, si;
+        for(int i=0; i<256; i++) {
+            s  = sbox[i];
+            si = invsb[i];
+            Te0[i] = word(aesGF.MUL2[0xFF&s],s,s,aesGF.MUL3[0xFF&s]);
+            Te1[i] = Integer.rotateRight(Te0[i],8);
+            Te2[i] = Integer.rotateRight(Te0[i],16);
+            Te3[i] = Integer.rotateRight(Te0[i],24);
+            Td0[i] = word(aesGF.MULE[0xFF&si],aesGF.MUL9[0xFF&si],aesGF.MULD[0xFF&si],aesGF.MULB[0xFF&si]);
+            Td1[i] = Integer.rotateRight(Td0[i],8);
+            Td2[i] = Integer.rotateRight(Td0[i],16);
+            Td3[i] = Integer.rotateRight(Td0[i],24);
+        }
+    }
+
     /* ************************* */
     /* MAIN METHODS - SIGNATURES */
     /* ************************* */
     
     public static byte[][][] keyExpansion(BigInteger K, int Nk, int Nr) {
+        return keyExpansion(keyBytes(K,Nk),Nk,Nr);
+    }
+
+    public static byte[][][] keyExpansion(byte[] key, int Nk, int Nr) {
+        long t = aesMetrics.ENABLED ? aesMetrics.start() : 0;
         // compute keys
-        byte W[][] = expandKey(K,Nk,Nr);
+        byte W[][] = expandKey(key,Nk,Nr);
         // create result
         byte[][][] k_exp = new byte[Nr+1][4][4];
         for(int i=0; i<Nr+1; i++)
             for(int j=0; j<4; j++)
                 for(int k=0; k<4; k++)
                     k_exp[i][k][j] = W[k][j+4*i];
+        if(aesMetrics.ENABLED) aesMetrics.KEY_EXPANSION.record(t,key.length,0,32*(Nr+1));
+        if(aesTrace.ENABLED) aesTrace.keys(aesTrace.KEY,k_exp,Nr);
         return k_exp;
     }
     
     public static byte[][][] invKeyExpansion(BigInteger K, int Nk, int Nr) {
+        return invKeyExpansion(keyBytes(K,Nk),Nk,Nr);
+    }
+
+    public static byte[][][] invKeyExpansion(byte[] key, int Nk, int Nr) {
+        long t = aesMetrics.ENABLED ? aesMetrics.start() : 0;
         // compute keys
-        byte[][] W = expandKey(K,Nk,Nr);
+        byte[][] W = expandKey(key,Nk,Nr);
         // copy unchanged keys (first and last ones)
         byte[][][] k_exp = new byte[Nr+1][4][4];
         for(int i=0; i<4; i++) 
@@ -124,12 +162,15 @@ public class aes {
                 k_exp [0][j][i] = W[j][i];
                 k_exp[Nr][j][i] = W[j][4*Nr+i]; 
             }
-        // create result applying invMixColumn to keys from 1 to Nr
+        // create result applying invMixColumn to keys from 1 to Nr, a
+        // packed column at a time
         for(int i=1; i<Nr; i++)
-            for(int j=0; j<4; j++)
-                for(int k=0; k<4; k++)
-                    for(int r=0; r<4; r++)
-                        k_exp[i][r][j] ^= prod(mix_inv[r][k],W[k][j+4*i]);
+            for(int j=0; j<4; j++) {
+                int c = aesGF.invMixColumn(word(W[0][j+4*i],W[1][j+4*i],W[2][j+4*i],W[3][j+4*i]));
+                for(int r=0; r<4; r++) k_exp[i][r][j] = (byte)(c>>>24-8*r);
+            }
+        if(aesMetrics.ENABLED) aesMetrics.INV_KEY_EXPANSION.record(t,key.length,0,32*(Nr+1));
+        if(aesTrace.ENABLED) aesTrace.keys(aesTrace.INV_KEY,k_exp,Nr);
         return k_exp;
     }
 
@@ -159,21 +200,22 @@ public class aes {
         };
     }
 
+    // a column at a time, packed in an int (see aesGF)
     public static byte[][] mixColumn(byte[][] estat) {
         byte res[][] = new byte[4][4];
-        for(int i=0; i<4; i++)
-            for(int j=0; j<4; j++)
-                for(int k=0; k<4; k++)
-                    res[k][i] ^= prod(mix[k][j],estat[j][i]);
+        for(int i=0; i<4; i++) {
+            int c = aesGF.mixColumn(word(estat[0][i],estat[1][i],estat[2][i],estat[3][i]));
+            for(int k=0; k<4; k++) res[k][i] = (byte)(c>>>24-8*k);
+        }
         return res;
     }
     
     public static byte[][] invMixColumn(byte[][] estat) {
         byte res[][] = new byte[4][4];
-        for(int i=0; i<4; i++)
-            for(int j=0; j<4; j++)
-                for(int k=0; k<4; k++)
-                    res[k][i] ^= prod(mix_inv[k][j],estat[j][i]);
+        for(int i=0; i<4; i++) {
+            int c = aesGF.invMixColumn(word(estat[0][i],estat[1][i],estat[2][i],estat[3][i]));
+            for(int k=0; k<4; k++) res[k][i] = (byte)(c>>>24-8*k);
+        }
         return res;
     }
 
@@ -186,107 +228,564 @@ public class aes {
     }
     
     public static byte[][] rijndael(byte[][] estat, byte[][][] W, int Nk, int Nr) {
+        long t = aesMetrics.ENABLED ? aesMetrics.sample() : 0;
+        int id = aesTrace.ENABLED ? aesTrace.id() : 0;
         // get initial key
         byte[][] key = get_key(0,W);
         byte[][] res = copy_state(estat);
         // add initial key
         res = addRoundKey(res,key);
+        if(aesTrace.ENABLED) aesTrace.round(aesTrace.ENCRYPT,id,0,Nr,res);
         // apply cipher algorithm
         for(int i=1; i<Nr; i++) {
             // get key ki
             key = get_key(i,W);
             // apply operations
             res = addRoundKey(mixColumn(shiftRow(SubBytes(res))),key);
+            if(aesTrace.ENABLED) aesTrace.round(aesTrace.ENCRYPT,id,i,Nr,res);
         }
         // get last key
         key = get_key(Nr,W);
         // omit mix column
-        return  addRoundKey(shiftRow(SubBytes(res)),key);
+        res = addRoundKey(shiftRow(SubBytes(res)),key);
+        if(aesTrace.ENABLED) aesTrace.round(aesTrace.ENCRYPT,id,Nr,Nr,res);
+        // every step allocates a state
+        if(aesMetrics.ENABLED) aesMetrics.RIJNDAEL.record(t,16,1,16*(4*Nr+1));
+        return res;
     }
     
     public static byte[][] invRijndael(byte[][] estat, byte[][][] InvW, int Nk, int Nr) {
+        long t = aesMetrics.ENABLED ? aesMetrics.sample() : 0;
+        int id = aesTrace.ENABLED ? aesTrace.id() : 0;
         // get initial key (last one)
         byte[][] key = get_key(Nr,InvW);
         byte[][] res = copy_state(estat);
         // add initial key
         res = addRoundKey(res,key);
+        if(aesTrace.ENABLED) aesTrace.round(aesTrace.DECRYPT,id,Nr,Nr,res);
         // apply decipher algorithm
         for(int i=Nr-1; i>0; i--) {
             // get key k(Nr-i)
             key = get_key(i,InvW);
             // apply operations        
             res = addRoundKey(invMixColumn(invShiftRow(invSubBytes(res))),key);
+            if(aesTrace.ENABLED) aesTrace.round(aesTrace.DECRYPT,id,i,Nr,res);
         }
         // get last key (first one)
         key = get_key(0,InvW);
         // omit mix column
-        return addRoundKey(invShiftRow(invSubBytes(res)),key);
+        res = addRoundKey(invShiftRow(invSubBytes(res)),key);
+        if(aesTrace.ENABLED) aesTrace.round(aesTrace.DECRYPT,id,0,Nr,res);
+        if(aesMetrics.ENABLED) aesMetrics.INV_RIJNDAEL.record(t,16,1,16*(4*Nr+1));
+        return res;
+    }
+
+    // T-table version of rijndael: the state is kept in four int columns
+    // and each round is 16 table lookups. rk are the round keys packed by
+    // columns (see packKeys). in and out can be the same block.
+    public static void rijndael(byte[] in, int inOff, byte[] out, int outOff, int[] rk, int Nr) {
+        long t = aesMetrics.ENABLED ? aesMetrics.sample() : 0;
+        int id = aesTrace.ENABLED ? aesTrace.id() : 0;
+        // get block and add initial key
+        int s0 = getInt(in,inOff   )^rk[0];
+        int s1 = getInt(in,inOff+4 )^rk[1];
+        int s2 = getInt(in,inOff+8 )^rk[2];
+        int s3 = getInt(in,inOff+12)^rk[3];
+        int t0, t1, t2, t3, k=4;
+        if(aesTrace.ENABLED) aesTrace.round(aesTrace.ENCRYPT,id,0,Nr,s0,s1,s2,s3);
+        // apply cipher algorithm
+        for(int i=1; i<Nr; i++, k+=4) {
+            t0 = Te0[s0>>>24]^Te1[(s1>>>16)&0xFF]^Te2[(s2>>>8)&0xFF]^Te3[s3&0xFF]^rk[k];
+            t1 = Te0[s1>>>24]^Te1[(s2>>>16)&0xFF]^Te2[(s3>>>8)&0xFF]^Te3[s0&0xFF]^rk[k+1];
+            t2 = Te0[s2>>>24]^Te1[(s3>>>16)&0xFF]^Te2[(s0>>>8)&0xFF]^Te3[s1&0xFF]^rk[k+2];
+            t3 = Te0[s3>>>24]^Te1[(s0>>>16)&0xFF]^Te2[(s1>>>8)&0xFF]^Te3[s2&0xFF]^rk[k+3];
+            s0 = t0; s1 = t1; s2 = t2; s3 = t3;
+            if(aesTrace.ENABLED) aesTrace.round(aesTrace.ENCRYPT,id,i,Nr,s0,s1,s2,s3);
+        }
+        // last round omits mix column
+        t0 = subWord(sbox,s0,s1,s2,s3)^rk[k];
+        t1 = subWord(sbox,s1,s2,s3,s0)^rk[k+1];
+        t2 = subWord(sbox,s2,s3,s0,s1)^rk[k+2];
+        t3 = subWord(sbox,s3,s0,s1,s2)^rk[k+3];
+        if(aesTrace.ENABLED) aesTrace.round(aesTrace.ENCRYPT,id,Nr,Nr,t0,t1,t2,t3);
+        putInt(out,outOff   ,t0);
+        putInt(out,outOff+4 ,t1);
+        putInt(out,outOff+8 ,t2);
+        putInt(out,outOff+12,t3);
+        if(aesMetrics.ENABLED) aesMetrics.RIJNDAEL.record(t,16,1,0);
+    }
+
+    // T-table version of invRijndael. InvRk are the inverse round keys
+    // (invKeyExpansion) packed by columns.
+    public static void invRijndael(byte[] in, int inOff, byte[] out, int outOff, int[] InvRk, int Nr) {
+        long t = aesMetrics.ENABLED ? aesMetrics.sample() : 0;
+        int id = aesTrace.ENABLED ? aesTrace.id() : 0;
+        // get block and add initial key (last one)
+        int k  = 4*Nr;
+        int s0 = getInt(in,inOff   )^InvRk[k];
+        int s1 = getInt(in,inOff+4 )^InvRk[k+1];
+        int s2 = getInt(in,inOff+8 )^InvRk[k+2];
+        int s3 = getInt(in,inOff+12)^InvRk[k+3];
+        int t0, t1, t2, t3;
+        if(aesTrace.ENABLED) aesTrace.round(aesTrace.DECRYPT,id,Nr,Nr,s0,s1,s2,s3);
+        // apply decipher algorithm
+        for(int i=Nr-1; i>0; i--) {
+            k -= 4;
+            t0 = Td0[s0>>>24]^Td1[(s3>>>16)&0xFF]^Td2[(s2>>>8)&0xFF]^Td3[s1&0xFF]^InvRk[k];
+            t1 = Td0[s1>>>24]^Td1[(s0>>>16)&0xFF]^Td2[(s3>>>8)&0xFF]^Td3[s2&0xFF]^InvRk[k+1];
+            t2 = Td0[s2>>>24]^Td1[(s1>>>16)&0xFF]^Td2[(s0>>>8)&0xFF]^Td3[s3&0xFF]^InvRk[k+2];
+            t3 = Td0[s3>>>24]^Td1[(s2>>>16)&0xFF]^Td2[(s1>>>8)&0xFF]^Td3[s0&0xFF]^InvRk[k+3];
+            s0 = t0; s1 = t1; s2 = t2; s3 = t3;
+            if(aesTrace.ENABLED) aesTrace.round(aesTrace.DECRYPT,id,i,Nr,s0,s1,s2,s3);
+        }
+        // last round (first key) omits mix column
+        t0 = subWord(invsb,s0,s3,s2,s1)^InvRk[0];
+        t1 = subWord(invsb,s1,s0,s3,s2)^InvRk[1];
+        t2 = subWord(invsb,s2,s1,s0,s3)^InvRk[2];
+        t3 = subWord(invsb,s3,s2,s1,s0)^InvRk[3];
+        if(aesTrace.ENABLED) aesTrace.round(aesTrace.DECRYPT,id,0,Nr,t0,t1,t2,t3);
+        putInt(out,outOff   ,t0);
+        putInt(out,outOff+4 ,t1);
+        putInt(out,outOff+8 ,t2);
+        putInt(out,outOff+12,t3);
+        if(aesMetrics.ENABLED) aesMetrics.INV_RIJNDAEL.record(t,16,1,0);
+    }
+
+    // rijndael of 4 consecutive blocks at once: every round is done for the
+    // four states before the next one, so their table lookups can overlap
+    // (aesEngine.INTERLEAVED, and aesBatch with the T-table engine, so also
+    // aesService encryption). 16 state ints do not fit in the registers of
+    // every CPU, aesEngines auto chooses between this and one block at a time.
+    static void rijndael4(byte[] in, int inOff, byte[] out, int outOff, int[] rk, int Nr) {
+        long t = aesMetrics.ENABLED ? aesMetrics.sample() : 0;
+        int id = aesTrace.ENABLED ? aesTrace.ids(4) : 0;
+        // get blocks and add initial key
+        int a0 = getInt(in,inOff)^rk[0], a1 = getInt(in,inOff+4)^rk[1];
+        int a2 = getInt(in,inOff+8)^rk[2], a3 = getInt(in,inOff+12)^rk[3];
+        int b0 = getInt(in,inOff+16)^rk[0], b1 = getInt(in,inOff+20)^rk[1];
+        int b2 = getInt(in,inOff+24)^rk[2], b3 = getInt(in,inOff+28)^rk[3];
+        int c0 = getInt(in,inOff+32)^rk[0], c1 = getInt(in,inOff+36)^rk[1];
+        int c2 = getInt(in,inOff+40)^rk[2], c3 = getInt(in,inOff+44)^rk[3];
+        int d0 = getInt(in,inOff+48)^rk[0], d1 = getInt(in,inOff+52)^rk[1];
+        int d2 = getInt(in,inOff+56)^rk[2], d3 = getInt(in,inOff+60)^rk[3];
+        int t0, t1, t2, t3, k=4;
+        if(aesTrace.ENABLED) trace4(aesTrace.ENCRYPT,id,0,Nr,a0,a1,a2,a3,b0,b1,b2,b3,c0,c1,c2,c3,d0,d1,d2,d3);
+        // apply cipher algorithm
+        for(int i=1; i<Nr; i++, k+=4) {
+            t0 = Te0[a0>>>24]^Te1[(a1>>>16)&0xFF]^Te2[(a2>>>8)&0xFF]^Te3[a3&0xFF]^rk[k];
+            t1 = Te0[a1>>>24]^Te1[(a2>>>16)&0xFF]^Te2[(a3>>>8)&0xFF]^Te3[a0&0xFF]^rk[k+1];
+            t2 = Te0[a2>>>24]^Te1[(a3>>>16)&0xFF]^Te2[(a0>>>8)&0xFF]^Te3[a1&0xFF]^rk[k+2];
+            t3 = Te0[a3>>>24]^Te1[(a0>>>16)&0xFF]^Te2[(a1>>>8)&0xFF]^Te3[a2&0xFF]^rk[k+3];
+            a0 = t0; a1 = t1; a2 = t2; a3 = t3;
+            t0 = Te0[b0>>>24]^Te1[(b1>>>16)&0xFF]^Te2[(b2>>>8)&0xFF]^Te3[b3&0xFF]^rk[k];
+            t1 = Te0[b1>>>24]^Te1[(b2>>>16)&0xFF]^Te2[(b3>>>8)&0xFF]^Te3[b0&0xFF]^rk[k+1];
+            t2 = Te0[b2>>>24]^Te1[(b3>>>16)&0xFF]^Te2[(b0>>>8)&0xFF]^Te3[b1&0xFF]^rk[k+2];
+            t3 = Te0[b3>>>24]^Te1[(b0>>>16)&0xFF]^Te2[(b1>>>8)&0xFF]^Te3[b2&0xFF]^rk[k+3];
+            b0 = t0; b1 = t1; b2 = t2; b3 = t3;
+            t0 = Te0[c0>>>24]^Te1[(c1>>>16)&0xFF]^Te2[(c2>>>8)&0xFF]^Te3[c3&0xFF]^rk[k];
+            t1 = Te0[c1>>>24]^Te1[(c2>>>16)&0xFF]^Te2[(c3>>>8)&0xFF]^Te3[c0&0xFF]^rk[k+1];
+            t2 = Te0[c2>>>24]^Te1[(c3>>>16)&0xFF]^Te2[(c0>>>8)&0xFF]^Te3[c1&0xFF]^rk[k+2];
+            t3 = Te0[c3>>>24]^Te1[(c0>>>16)&0xFF]^Te2[(c1>>>8)&0xFF]^Te3[c2&0xFF]^rk[k+3];
+            c0 = t0; c1 = t1; c2 = t2; c3 = t3;
+            t0 = Te0[d0>>>24]^Te1[(d1>>>16)&0xFF]^Te2[(d2>>>8)&0xFF]^Te3[d3&0xFF]^rk[k];
+            t1 = Te0[d1>>>24]^Te1[(d2>>>16)&0xFF]^Te2[(d3>>>8)&0xFF]^Te3[d0&0xFF]^rk[k+1];
+            t2 = Te0[d2>>>24]^Te1[(d3>>>16)&0xFF]^Te2[(d0>>>8)&0xFF]^Te3[d1&0xFF]^rk[k+2];
+            t3 = Te0[d3>>>24]^Te1[(d0>>>16)&0xFF]^Te2[(d1>>>8)&0xFF]^Te3[d2&0xFF]^rk[k+3];
+            d0 = t0; d1 = t1; d2 = t2; d3 = t3;
+            if(aesTrace.ENABLED) trace4(aesTrace.ENCRYPT,id,i,Nr,a0,a1,a2,a3,b0,b1,b2,b3,c0,c1,c2,c3,d0,d1,d2,d3);
+        }
+        // last round omits mix column
+        putInt(out,outOff,subWord(sbox,a0,a1,a2,a3)^rk[k]);
+        putInt(out,outOff+4,subWord(sbox,a1,a2,a3,a0)^rk[k+1]);
+        putInt(out,outOff+8,subWord(sbox,a2,a3,a0,a1)^rk[k+2]);
+        putInt(out,outOff+12,subWord(sbox,a3,a0,a1,a2)^rk[k+3]);
+        putInt(out,outOff+16,subWord(sbox,b0,b1,b2,b3)^rk[k]);
+        putInt(out,outOff+20,subWord(sbox,b1,b2,b3,b0)^rk[k+1]);
+        putInt(out,outOff+24,subWord(sbox,b2,b3,b0,b1)^rk[k+2]);
+        putInt(out,outOff+28,subWord(sbox,b3,b0,b1,b2)^rk[k+3]);
+        putInt(out,outOff+32,subWord(sbox,c0,c1,c2,c3)^rk[k]);
+        putInt(out,outOff+36,subWord(sbox,c1,c2,c3,c0)^rk[k+1]);
+        putInt(out,outOff+40,subWord(sbox,c2,c3,c0,c1)^rk[k+2]);
+        putInt(out,outOff+44,subWord(sbox,c3,c0,c1,c2)^rk[k+3]);
+        putInt(out,outOff+48,subWord(sbox,d0,d1,d2,d3)^rk[k]);
+        putInt(out,outOff+52,subWord(sbox,d1,d2,d3,d0)^rk[k+1]);
+        putInt(out,outOff+56,subWord(sbox,d2,d3,d0,d1)^rk[k+2]);
+        putInt(out,outOff+60,subWord(sbox,d3,d0,d1,d2)^rk[k+3]);
+        if(aesTrace.ENABLED) trace4(aesTrace.ENCRYPT,id,Nr,Nr,out,outOff);
+        if(aesMetrics.ENABLED) aesMetrics.RIJNDAEL.record(t,64,4,0);
+    }
+
+    // invRijndael of 4 consecutive blocks at once (see rijndael4)
+    static void invRijndael4(byte[] in, int inOff, byte[] out, int outOff, int[] InvRk, int Nr) {
+        long t = aesMetrics.ENABLED ? aesMetrics.sample() : 0;
+        int id = aesTrace.ENABLED ? aesTrace.ids(4) : 0;
+        // get blocks and add initial key (last one)
+        int k = 4*Nr;
+        int a0 = getInt(in,inOff)^InvRk[k], a1 = getInt(in,inOff+4)^InvRk[k+1];
+        int a2 = getInt(in,inOff+8)^InvRk[k+2], a3 = getInt(in,inOff+12)^InvRk[k+3];
+        int b0 = getInt(in,inOff+16)^InvRk[k], b1 = getInt(in,inOff+20)^InvRk[k+1];
+        int b2 = getInt(in,inOff+24)^InvRk[k+2], b3 = getInt(in,inOff+28)^InvRk[k+3];
+        int c0 = getInt(in,inOff+32)^InvRk[k], c1 = getInt(in,inOff+36)^InvRk[k+1];
+        int c2 = getInt(in,inOff+40)^InvRk[k+2], c3 = getInt(in,inOff+44)^InvRk[k+3];
+        int d0 = getInt(in,inOff+48)^InvRk[k], d1 = getInt(in,inOff+52)^InvRk[k+1];
+        int d2 = getInt(in,inOff+56)^InvRk[k+2], d3 = getInt(in,inOff+60)^InvRk[k+3];
+        int t0, t1, t2, t3;
+        if(aesTrace.ENABLED) trace4(aesTrace.DECRYPT,id,Nr,Nr,a0,a1,a2,a3,b0,b1,b2,b3,c0,c1,c2,c3,d0,d1,d2,d3);
+        // apply decipher algorithm
+        for(int i=Nr-1; i>0; i--) {
+            k -= 4;
+            t0 = Td0[a0>>>24]^Td1[(a3>>>16)&0xFF]^Td2[(a2>>>8)&0xFF]^Td3[a1&0xFF]^InvRk[k];
+            t1 = Td0[a1>>>24]^Td1[(a0>>>16)&0xFF]^Td2[(a3>>>8)&0xFF]^Td3[a2&0xFF]^InvRk[k+1];
+            t2 = Td0[a2>>>24]^Td1[(a1>>>16)&0xFF]^Td2[(a0>>>8)&0xFF]^Td3[a3&0xFF]^InvRk[k+2];
+            t3 = Td0[a3>>>24]^Td1[(a2>>>16)&0xFF]^Td2[(a1>>>8)&0xFF]^Td3[a0&0xFF]^InvRk[k+3];
+            a0 = t0; a1 = t1; a2 = t2; a3 = t3;
+            t0 = Td0[b0>>>24]^Td1[(b3>>>16)&0xFF]^Td2[(b2>>>8)&0xFF]^Td3[b1&0xFF]^InvRk[k];
+            t1 = Td0[b1>>>24]^Td1[(b0>>>16)&0xFF]^Td2[(b3>>>8)&0xFF]^Td3[b2&0xFF]^InvRk[k+1];
+            t2 = Td0[b2>>>24]^Td1[(b1>>>16)&0xFF]^Td2[(b0>>>8)&0xFF]^Td3[b3&0xFF]^InvRk[k+2];
+            t3 = Td0[b3>>>24]^Td1[(b2>>>16)&0xFF]^Td2[(b1>>>8)&0xFF]^Td3[b0&0xFF]^InvRk[k+3];
+            b0 = t0; b1 = t1; b2 = t2; b3 = t3;
+            t0 = Td0[c0>>>24]^Td1[(c3>>>16)&0xFF]^Td2[(c2>>>8)&0xFF]^Td3[c1&0xFF]^InvRk[k];
+            t1 = Td0[c1>>>24]^Td1[(c0>>>16)&0xFF]^Td2[(c3>>>8)&0xFF]^Td3[c2&0xFF]^InvRk[k+1];
+            t2 = Td0[c2>>>24]^Td1[(c1>>>16)&0xFF]^Td2[(c0>>>8)&0xFF]^Td3[c3&0xFF]^InvRk[k+2];
+            t3 = Td0[c3>>>24]^Td1[(c2>>>16)&0xFF]^Td2[(c1>>>8)&0xFF]^Td3[c0&0xFF]^InvRk[k+3];
+            c0 = t0; c1 = t1; c2 = t2; c3 = t3;
+            t0 = Td0[d0>>>24]^Td1[(d3>>>16)&0xFF]^Td2[(d2>>>8)&0xFF]^Td3[d1&0xFF]^InvRk[k];
+            t1 = Td0[d1>>>24]^Td1[(d0>>>16)&0xFF]^Td2[(d3>>>8)&0xFF]^Td3[d2&0xFF]^InvRk[k+1];
+            t2 = Td0[d2>>>24]^Td1[(d1>>>16)&0xFF]^Td2[(d0>>>8)&0xFF]^Td3[d3&0xFF]^InvRk[k+2];
+            t3 = Td0[d3>>>24]^Td1[(d2>>>16)&0xFF]^Td2[(d1>>>8)&0xFF]^Td3[d0&0xFF]^InvRk[k+3];
+            d0 = t0; d1 = t1; d2 = t2; d3 = t3;
+            if(aesTrace.ENABLED) trace4(aesTrace.DECRYPT,id,i,Nr,a0,a1,a2,a3,b0,b1,b2,b3,c0,c1,c2,c3,d0,d1,d2,d3);
+        }
+        // last round (first key) omits mix column
+        putInt(out,outOff,subWord(invsb,a0,a3,a2,a1)^InvRk[0]);
+        putInt(out,outOff+4,subWord(invsb,a1,a0,a3,a2)^InvRk[1]);
+        putInt(out,outOff+8,subWord(invsb,a2,a1,a0,a3)^InvRk[2]);
+        putInt(out,outOff+12,subWord(invsb,a3,a2,a1,a0)^InvRk[3]);
+        putInt(out,outOff+16,subWord(invsb,b0,b3,b2,b1)^InvRk[0]);
+        putInt(out,outOff+20,subWord(invsb,b1,b0,b3,b2)^InvRk[1]);
+        putInt(out,outOff+24,subWord(invsb,b2,b1,b0,b3)^InvRk[2]);
+        putInt(out,outOff+28,subWord(invsb,b3,b2,b1,b0)^InvRk[3]);
+        putInt(out,outOff+32,subWord(invsb,c0,c3,c2,c1)^InvRk[0]);
+        putInt(out,outOff+36,subWord(invsb,c1,c0,c3,c2)^InvRk[1]);
+        putInt(out,outOff+40,subWord(invsb,c2,c1,c0,c3)^InvRk[2]);
+        putInt(out,outOff+44,subWord(invsb,c3,c2,c1,c0)^InvRk[3]);
+        putInt(out,outOff+48,subWord(invsb,d0,d3,d2,d1)^InvRk[0]);
+        putInt(out,outOff+52,subWord(invsb,d1,d0,d3,d2)^InvRk[1]);
+        putInt(out,outOff+56,subWord(invsb,d2,d1,d0,d3)^InvRk[2]);
+        putInt(out,outOff+60,subWord(invsb,d3,d2,d1,d0)^InvRk[3]);
+        if(aesTrace.ENABLED) trace4(aesTrace.DECRYPT,id,0,Nr,out,outOff);
+        if(aesMetrics.ENABLED) aesMetrics.INV_RIJNDAEL.record(t,64,4,0);
+    }
+
+    // ByteBuffer version of the T-table rijndael: heap, direct or mapped
+    // buffers using absolute positions (position and limit are not changed).
+    // Runs the byte[] kernel above, see blocks.
+    public static void rijndael(ByteBuffer in, int inOff, ByteBuffer out, int outOff, int[] rk, int Nr) {
+        blocks(true,in,inOff,out,outOff,rk,Nr,1);
+    }
+
+    // ByteBuffer version of the T-table invRijndael
+    public static void invRijndael(ByteBuffer in, int inOff, ByteBuffer out, int outOff, int[] InvRk, int Nr) {
+        blocks(false,in,inOff,out,outOff,InvRk,Nr,1);
+    }
+
+    // count consecutive blocks of the ByteBuffer rijndael (encrypt) or
+    // invRijndael with the byte[] kernel: on the arrays of heap buffers,
+    // through one array of 512 blocks at most for the others (read only
+    // buffers too). Callers that cipher buffers block by block and care
+    // about garbage keep their own array (see aesFile).
+    static void blocks(boolean encrypt, ByteBuffer in, int inOff, ByteBuffer out, int outOff, int[] keys, int Nr, int count) {
+        Objects.checkFromIndexSize(inOff,16*count,in.limit());
+        Objects.checkFromIndexSize(outOff,16*count,out.limit());
+        if(in.hasArray() && out.hasArray()) {
+            byte[] a = in.array(), b = out.array();
+            inOff += in.arrayOffset();
+            outOff += out.arrayOffset();
+            for(int i=0; i<count; i++, inOff+=16, outOff+=16) {
+                if(encrypt) rijndael(a,inOff,b,outOff,keys,Nr);
+                else        invRijndael(a,inOff,b,outOff,keys,Nr);
+            }
+            return;
+        }
+        byte[] buf = new byte[16*Math.min(count,512)];
+        for(int i=0; i<count; ) {
+            int k = Math.min(count-i,512);
+            in.get(inOff+16*i,buf,0,16*k);
+            for(int j=0; j<16*k; j+=16) {
+                if(encrypt) rijndael(buf,j,buf,j,keys,Nr);
+                else        invRijndael(buf,j,buf,j,keys,Nr);
+            }
+            out.put(outOff+16*i,buf,0,16*k);
+            i+=k;
+        }
     }
 
     public static byte[] xifrarAES(byte[] M, BigInteger K, int Lk) {
-        // compute Nk and Nr
-        int Nr, Nk = Lk/32;
-        if(Nk==4) Nr=10; else if(Nk==6) Nr=12; else Nr=14;
-        // generate random IV number
-        Random rand = new Random();
-        byte[] IV   = new byte[16];
-        rand.nextBytes(IV);
-        // add random IV and pad message
+        return xifrarAES(M,new aesKey(K,Lk));
+    }
+
+    public static byte[] xifrarAES(byte[] M, aesKey key) {
+        return xifrarAES(M,key,aesEngines.getDefault());
+    }
+
+    public static byte[] xifrarAES(byte[] M, aesKey key, aesEngine engine) {
+        return xifrarAES(M,key,engine,aesIV.SECURE);
+    }
+
+    // IVs from source (e.g. aesIV.counter for reproducible results)
+    public static byte[] xifrarAES(byte[] M, aesKey key, aesIV source) {
+        return xifrarAES(M,key,aesEngines.getDefault(),source);
+    }
+
+    public static byte[] xifrarAES(byte[] M, aesKey key, aesEngine engine, aesIV source) {
+        // generate IV number
+        byte[] IV = new byte[16];
+        source.nextIV(IV,0,16);
+        return xifrarAES(M,key,engine,IV);
+    }
+
+    // IV given by the caller (16 bytes, it must not be reused with the same key)
+    public static byte[] xifrarAES(byte[] M, aesKey key, byte[] IV) {
+        return xifrarAES(M,key,aesEngines.getDefault(),IV);
+    }
+
+    public static byte[] xifrarAES(byte[] M, aesKey key, aesEngine engine, byte[] IV) {
+        if(IV.length!=16) throw new IllegalArgumentException("IV must be 16 bytes");
+        long t = aesMetrics.ENABLED ? aesMetrics.start() : 0;
+        // add IV and pad message
         byte[] C = IVpadMessage(M,IV);
-        // cipher padded plaintext 
-        byte[][] estat = new byte[4][4];
-        // first block of data is IV
-        byte[][] prev  = get_block(C,0);
-        // cipher plaintext to C
-        for(int i=16; i<C.length; i+=16) {
-            // get plaintext block and encrypt it
-            estat = rijndael(xor(get_block(C,i),prev),keyExpansion(K,Nk,Nr),Nk,Nr);
-            // replace plaintext with cipher text
-            copy_block(estat,C,i);
-            // next block
-            prev = estat;
-        }
+        // cipher plaintext to C (first block of data is IV)
+        encryptCBC(C,16,C.length,key,engine);
+        if(aesMetrics.ENABLED) aesMetrics.XIFRAR.record(t,M.length,C.length/16-1,C.length);
         // return ciphertext
         return C;
     }
 
     public static byte[] desxifrarAES(byte[] C, BigInteger K, int Lk) {
-        // get IV
-        byte[][] prev = get_block(C,0);
-        // compute Nk and Nr
-        int Nk = Lk/32, n = C.length;
-        int Nr; if(Nk==4) Nr=10; else if(Nk==6) Nr=12; else Nr=14;
-        // loop that deciphers ciphertext data
-        byte[][] next  = new byte[4][4];
-        byte[][] estat = new byte[4][4];
-        byte[] M       = new byte[n-16];
-        for(int i=16; i<n; i+=16) {
-            // get encrypted block
-            next  = get_block(C,i);
-            // decrypt block
-            estat = xor(invRijndael(next,invKeyExpansion(K,Nk,Nr),Nk,Nr),prev);
-            // copy block
-            copy_block(estat,M,i-16);
-            // next
-            prev  = next;
+        return desxifrarAES(C,new aesKey(K,Lk));
+    }
+
+    public static byte[] desxifrarAES(byte[] C, aesKey key) {
+        return desxifrarAES(C,key,aesEngines.getDefault());
+    }
+
+    public static byte[] desxifrarAES(byte[] C, aesKey key, aesEngine engine) {
+        return desxifrarAES(C,key,engine,ForkJoinPool.commonPool(),PARALLEL_THRESHOLD);
+    }
+
+    // ciphertexts of threshold bytes or more are deciphered in parallel in
+    // pool: in CBC each block only depends on itself and the previous one.
+    public static byte[] desxifrarAES(byte[] C, aesKey key, aesEngine engine,
+                                      ForkJoinPool pool, int threshold) {
+        long t = aesMetrics.ENABLED ? aesMetrics.start() : 0;
+        byte[] M = new byte[C.length-16];
+        if(C.length<threshold) decryptCBC(C,16,C.length,M,0,key,engine);
+        else pool.invoke(new ParallelCBC(C,M,16,C.length,key,engine));
+        M = unpadMessage(M);
+        if(aesMetrics.ENABLED) aesMetrics.DESXIFRAR.record(t,M.length,C.length/16-1,C.length-16+M.length);
+        return M;
+    }
+
+    /* ************************* */
+    /* OFF-HEAP BUFFERS          */
+    /* ************************* */
+
+    // scratch size (bytes) of the buffer versions
+    private static final int BUFFER = 8192;
+
+    // xifrarAES from the remaining bytes of M to C (IV and ciphertext at
+    // the position of C). For direct and mapped buffers (and memory
+    // segments through asByteBuffer): data goes through a small scratch
+    // array, nothing of the message size is allocated. C can be the same
+    // memory as M at the same position (in place) when it has room for the
+    // IV and the padding. Both positions are advanced, returns the bytes
+    // written to C.
+    public static int xifrarAES(ByteBuffer M, ByteBuffer C, aesKey key) {
+        return xifrarAES(M,C,key,aesEngines.getDefault());
+    }
+
+    public static int xifrarAES(ByteBuffer M, ByteBuffer C, aesKey key, aesEngine engine) {
+        byte[] IV = new byte[16];
+        aesIV.SECURE.nextIV(IV,0,16);
+        return xifrarAES(M,C,key,engine,IV);
+    }
+
+    public static int xifrarAES(ByteBuffer M, ByteBuffer C, aesKey key, aesEngine engine, byte[] IV) {
+        if(IV.length!=16) throw new IllegalArgumentException("IV must be 16 bytes");
+        long t = aesMetrics.ENABLED ? aesMetrics.start() : 0;
+        int n = M.remaining(), m = M.position(), c = C.position();
+        long padded = paddedLength(n);
+        if(C.remaining()<16+padded) throw new BufferOverflowException();
+        int size = (int)padded;
+        // previous ciphertext block, a chunk of plaintext and one more
+        // block read ahead: in place, writing a chunk overwrites the 16
+        // message bytes after it
+        byte[] buf = new byte[16+BUFFER+16];
+        System.arraycopy(IV,0,buf,0,16);
+        int have = Math.min(n,BUFFER+16);
+        M.get(m,buf,16,have);
+        C.put(c,IV);
+        for(int p=0; p<size; ) {
+            int k = Math.min(BUFFER,size-p);
+            // the last chunk gets the padding
+            for(int q=Math.max(0,n-p); q<k; q++) buf[16+q] = padByte(p+q,n,size);
+            encryptCBC(buf,16,16+k,key,engine);
+            C.put(c+16+p,buf,16,k);
+            // last ciphertext block is the next IV, keep the bytes read ahead
+            System.arraycopy(buf,k,buf,0,16);
+            int left = Math.max(0,have-k);
+            System.arraycopy(buf,16+k,buf,16,left);
+            p+=k;
+            int r = Math.max(0,Math.min(n-p-left,BUFFER+16-left));
+            if(r>0) M.get(m+p+left,buf,16+left,r);
+            have = left+r;
+        }
+        M.position(m+n);
+        C.position(c+16+size);
+        if(aesMetrics.ENABLED) aesMetrics.XIFRAR.record(t,n,size/16,buf.length);
+        return 16+size;
+    }
+
+    // desxifrarAES from the remaining bytes of C (IV and ciphertext) to M.
+    // M can be the same memory as C at the same position (in place). Both
+    // positions are advanced, returns the message length.
+    public static int desxifrarAES(ByteBuffer C, ByteBuffer M, aesKey key) {
+        return desxifrarAES(C,M,key,aesEngines.getDefault());
+    }
+
+    public static int desxifrarAES(ByteBuffer C, ByteBuffer M, aesKey key, aesEngine engine) {
+        long t = aesMetrics.ENABLED ? aesMetrics.start() : 0;
+        // length trailer of the last block (checks the key)
+        int n = (int)aesCBCRange.length(C,key);
+        if(M.remaining()<n) throw new BufferOverflowException();
+        int size = C.remaining(), c = C.position(), m = M.position();
+        // previous ciphertext block and a chunk of ciphertext
+        byte[] buf = new byte[16+BUFFER], out = new byte[BUFFER];
+        C.get(c,buf,0,16);
+        // only the blocks holding message bytes, the message is written
+        // 16 bytes behind the ciphertext that is read
+        for(int p=0; p<n; ) {
+            int k = Math.min(BUFFER,(n-p+15)/16*16);
+            C.get(c+16+p,buf,16,k);
+            decryptCBC(buf,16,16+k,out,0,key,engine);
+            M.put(m+p,out,0,Math.min(k,n-p));
+            System.arraycopy(buf,k,buf,0,16);
+            p+=k;
+        }
+        C.position(c+size);
+        M.position(m+n);
+        if(aesMetrics.ENABLED) aesMetrics.DESXIFRAR.record(t,n,size/16-1,buf.length+out.length);
+        return n;
+    }
+
+    /* ************************* */
+    /* PARALLEL CBC DECRYPTION   */
+    /* ************************* */
+
+    // blocks given to the engine at once
+    private static final int CBC_BATCH = aesBitslice.LANES;
+    // default size (bytes) from which desxifrarAES runs in parallel
+    static final int PARALLEL_THRESHOLD = Integer.getInteger("aes.parallelThreshold",1<<20);
+    // blocks deciphered by a single task
+    private static final int PARALLEL_CHUNK = 4096;
+
+    private static final class ParallelCBC extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final byte[] C, M;
+        private final int from, to;
+        private final aesKey key;
+        private final aesEngine engine;
+
+        ParallelCBC(byte[] C, byte[] M, int from, int to, aesKey key, aesEngine engine) {
+            this.C = C; this.M = M; this.from = from; this.to = to;
+            this.key = key; this.engine = engine;
+        }
+
+        @Override
+        protected void compute() {
+            int blocks = (to-from)/16;
+            if(blocks<=PARALLEL_CHUNK) decryptCBC(C,from,to,M,from-16,key,engine);
+            else {
+                // split at a block boundary
+                int mid = from+16*(blocks/2);
+                invokeAll(new ParallelCBC(C,M,from,mid,key,engine),
+                          new ParallelCBC(C,M,mid,to,key,engine));
+            }
         }
-        // get size
-        n-=16;
-        ByteBuffer bb = ByteBuffer.wrap(new byte[] {M[n-8],M[n-7],M[n-6],M[n-5],M[n-4],M[n-3],M[n-2],M[n-1]});
-        long size = bb.getLong()/8;
-        // delete padded data
-        // WARNING!!: it can fail if key is not correct, and data size are random bits, 
-        byte[] plaintext = new byte[(int)(size)];
-        for(int i=0; i<size; i++) plaintext[i] = M[i];
-        // return decrypted text
-        return plaintext;
     }
 
     /* ************************* */
     /* PRIVATE AUXILIARY METHODS */
     /* ************************* */
 
-    private static byte prod(byte a, byte b) {
+    // stores a random 16 bytes IV at IV[off]
+    static void randomIV(byte[] IV, int off) {
+        randomIV(IV,off,16);
+    }
+
+    // stores len random bytes (several IVs) at IV[off]
+    static void randomIV(byte[] IV, int off, int len) {
+        aesIV.SECURE.nextIV(IV,off,len);
+    }
+
+    // size of a message of n bytes once padded (without IV)
+    static long paddedLength(long n) {
+        return 16*(n/16+(n%16<8 ? 1 : 2));
+    }
+
+    // copies n bytes of M from off to C at cOff followed by the padding of
+    // IVpadMessage: 0x80, zeroes and the length in bits on the last 8 bytes
+    static void padMessage(byte[] M, int off, int n, byte[] C, int cOff) {
+        int end = cOff+(int)paddedLength(n);
+        System.arraycopy(M,off,C,cOff,n);
+        C[cOff+n] = (byte)0x80;
+        Arrays.fill(C,cOff+n+1,end-8,(byte)0);
+        long bits = 8L*n;
+        for(int i=end-1; i>=end-8; i--, bits>>>=8) C[i] = (byte)bits;
+    }
+
+    // ciphers in place the plaintext blocks from C[from] to C[to-1], the
+    // previous block C[from-16] is the IV
+    static void encryptCBC(byte[] C, int from, int to, aesKey key, aesEngine engine) {
+        for(int i=from; i<to; i+=16) {
+            // xor plaintext block with previous ciphertext block
+            for(int j=i; j<i+16; j++) C[j] ^= C[j-16];
+            // replace plaintext with cipher text
+            engine.encryptBlock(key,C,i,C,i);
+        }
+    }
+
+    // deciphers CBC blocks from C[from] to C[to-1] (from>=16) into M[mOff]
+    static void decryptCBC(byte[] C, int from, int to, byte[] M, int mOff, aesKey key, aesEngine engine) {
+        for(int i=from; i<to; i+=16*CBC_BATCH, mOff+=16*CBC_BATCH) {
+            int n = Math.min(CBC_BATCH,(to-i)/16);
+            // decrypt n blocks, they do not depend on each other
+            engine.decryptBlocks(key,C,i,M,mOff,n);
+            // xor with previous ciphertext blocks (first one is IV)
+            for(int j=0; j<16*n; j++) M[mOff+j] ^= C[i-16+j];
+        }
+    }
+
+    // byte q of a message of n bytes padded to size bytes: 0x80, zeroes
+    // and the length in bits (see IVpadMessage)
+    private static byte padByte(int q, int n, int size) {
+        if(q==n) return (byte)0x80;
+        if(q<size-8) return 0;
+        return (byte)(8L*n>>>8*(size-1-q));
+    }
+
+    // removes padding from a deciphered message using the length trailer
+    private static byte[] unpadMessage(byte[] M) {
+        // get size: a wrong key or a corrupted trailer gives random bits,
+        // the padding must then be one or two blocks
+        int n = M.length;
+        long size = aesCBCRange.messageLength(M,n-8,n);
+        // delete padded data
+        return Arrays.copyOf(M,(int)size);
+    }
+
+    // product with the log tables, reference for the aesGF kernels
+    static byte prod(byte a, byte b) {
         if(a==0 || b==0) return 0;
         else return alog[((0xFF&log[0xFF&a])+(0xFF&log[0xFF&b]))%255];
     }
@@ -344,7 +843,7 @@ public class aes {
         return w;
     }
 
-    private static void copy_block(byte[][] estat, byte[] C, int i) {
+    static void copy_block(byte[][] estat, byte[] C, int i) {
         for(int j=0; j<4; j++)
             for(int k=0; k<4; k++)
                 C[i+k+4*j] = estat[k][j];
@@ -358,7 +857,7 @@ public class aes {
         return key;
     }
 
-    private static byte[][] get_block(byte[] M, int i) {
+    static byte[][] get_block(byte[] M, int i) {
         byte[][] estat = new byte[4][4];
         for(int j=0; j<4; j++)
             for(int k=0; k<4; k++)
@@ -366,14 +865,65 @@ public class aes {
         return estat;
     }
     
-    private static byte[][] expandKey(BigInteger K, int Nk, int Nr) {
-        byte[][] W   = new byte[4][(Nr+1)*4];
+    // packs round keys by columns for the T-table rijndael (4*(Nr+1) ints)
+    static int[] packKeys(byte[][][] W) {
+        int[] rk = new int[4*W.length];
+        for(int i=0; i<W.length; i++)
+            for(int j=0; j<4; j++)
+                rk[4*i+j] = word(W[i][0][j],W[i][1][j],W[i][2][j],W[i][3][j]);
+        return rk;
+    }
+
+    private static int word(byte b0, byte b1, byte b2, byte b3) {
+        return (0xFF&b0)<<24 | (0xFF&b1)<<16 | (0xFF&b2)<<8 | (0xFF&b3);
+    }
+
+    // substitutes row r of column cr (already shifted) using table box
+    private static int subWord(byte[] box, int c0, int c1, int c2, int c3) {
+        return word(box[c0>>>24],box[(c1>>>16)&0xFF],box[(c2>>>8)&0xFF],box[c3&0xFF]);
+    }
+
+    // states of round r of the 4 blocks of rijndael4/invRijndael4 (ids id
+    // to id+3)
+    private static void trace4(int type, int id, int r, int Nr, int a0, int a1, int a2, int a3,
+                               int b0, int b1, int b2, int b3, int c0, int c1, int c2, int c3,
+                               int d0, int d1, int d2, int d3) {
+        aesTrace.round(type,id,r,Nr,a0,a1,a2,a3);
+        aesTrace.round(type,id+1,r,Nr,b0,b1,b2,b3);
+        aesTrace.round(type,id+2,r,Nr,c0,c1,c2,c3);
+        aesTrace.round(type,id+3,r,Nr,d0,d1,d2,d3);
+    }
+
+    // same as above for the 4 blocks stored at b[off..off+64)
+    private static void trace4(int type, int id, int r, int Nr, byte[] b, int off) {
+        for(int i=0; i<4; i++, off+=16)
+            aesTrace.round(type,id+i,r,Nr,getInt(b,off),getInt(b,off+4),getInt(b,off+8),getInt(b,off+12));
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (0xFF&b[i])<<24 | (0xFF&b[i+1])<<16 | (0xFF&b[i+2])<<8 | (0xFF&b[i+3]);
+    }
+
+    private static void putInt(byte[] b, int i, int w) {
+        b[i]   = (byte)(w>>>24);
+        b[i+1] = (byte)(w>>>16);
+        b[i+2] = (byte)(w>>>8);
+        b[i+3] = (byte)w;
+    }
+
+    // converts K to the 4*Nk key bytes used by the key schedule
+    static byte[] keyBytes(BigInteger K, int Nk) {
         byte[] key   = new byte[4*Nk];
         byte[] bytes = K.toByteArray();
         int    diff  = 4*Nk-bytes.length;
         // toByteArray deletes initial zeros -> changes the key!!!
         for(int i=0; i<diff; i++) key[i] = 0;
         for(int i=diff; i<4*Nk; i++) key[i] = bytes[i-diff];
+        return key;
+    }
+
+    private static byte[][] expandKey(byte[] key, int Nk, int Nr) {
+        byte[][] W   = new byte[4][(Nr+1)*4];
         // initial key
         for(int i=0; i<Nk; i++)
             for(int j=0; j<4; j++)
@@ -395,6 +945,7 @@ public class aes {
     // 3- store original message length on the last 8 bytes
     // 4- add aditional full block (16 bytes) if needed for 1-3.
     private static byte[] IVpadMessage(byte[] M, byte[] IV) {
+        long t = aesMetrics.ENABLED ? aesMetrics.start() : 0;
         // compute pad variable wich controls main if
         int pad, n = M.length;
         if(n%16 == 0)   pad=0; // add one block and pad it
@@ -408,8 +959,8 @@ public class aes {
         // set IV as the first block
         for(int i=0; i<16; i++) Mpad[i] = IV[i];
         byte[]   m_length;
-        // loop that copies blocks of data
-        for(int i=0; i+16<=n; i+=16) copy_block(get_block(M,i),Mpad,i+16);
+        // copy full blocks of data
+        System.arraycopy(M,0,Mpad,16,n-n%16);
         // add new block and pad new block
         if(pad==0) {
             // add first byte 0x80
@@ -417,7 +968,7 @@ public class aes {
             // add 7 0x00 bytes
             for(int i=1; i<8; i++) Mpad[n+i+16]=0x00;
             // store message length in bits at the last 8 bytes
-            m_length = ByteBuffer.allocate(8).putLong(n*8).array();
+            m_length = ByteBuffer.allocate(8).putLong(8L*n).array();
             for(int i=8,j=0; i<16; i++,j++) Mpad[n+i+16]=m_length[j];
         }
         // pad current block
@@ -430,7 +981,7 @@ public class aes {
             // add 0x00 bytes until there are 8 bytes left
             for(int i=n+1; i%16!=8; i++) Mpad[i+16]=0x00;
             // store message length in bits at the last 8 bytes
-            m_length = ByteBuffer.allocate(8).putLong(n*8).array();
+            m_length = ByteBuffer.allocate(8).putLong(8L*n).array();
             for(int i=pos+8,j=0; j<8; i++,j++) Mpad[i+16]=m_length[j];
         }
         // pad current block, add new block, padd new block
@@ -447,9 +998,10 @@ public class aes {
             pos+=16;
             for(int i=0; i<8; i++) Mpad[i+pos+16]=0x00;
             // store message length in bits at the last 8 bytes
-            m_length = ByteBuffer.allocate(8).putLong(n*8).array();
+            m_length = ByteBuffer.allocate(8).putLong(8L*n).array();
             for(int i=pos+8,j=0; j<8; i++,j++) Mpad[i+16]=m_length[j];
         }
+        if(aesMetrics.ENABLED) aesMetrics.PAD.record(t,n,size/16-1,size+8);
         return Mpad;
     }
 
@@ -467,26 +1019,17 @@ public class aes {
 
     // These methods can be removed safetely.
 
+    // hexadecimal with the table driven aesHex, not String.format
+
     public static String getLogTables(int col) {
         StringBuilder out = new StringBuilder();
         out.append("Generator: 0x03\n");
         out.append("Log table:");
-        for(int i=0;i<256;i++) {
-            if(i%col==0) out.append("\n");
-            out.append(String.format("%02x ",log[i]));
-        }
-
+        out.append(aesHex.lines(log,0,256,col,true));
         out.append("\n\nAnti-log table:");
-        for(int i=0;i<256;i++) {
-            if(i%col==0) out.append("\n");
-            out.append(String.format("%02x ",alog[i]));
-        }
-        
+        out.append(aesHex.lines(alog,0,256,col,true));
         out.append("\n\nInverse table:");
-        for(int i=0;i<256;i++) {
-            if(i%col==0) out.append("\n");
-            out.append(String.format("%02x ",inv[i]));
-        }
+        out.append(aesHex.lines(inv,0,256,col,true));
         out.append("\n");
         return out.toString();
     }
@@ -494,46 +1037,30 @@ public class aes {
     public static String getSboxTables(int col) {
         StringBuilder out = new StringBuilder();
         out.append("S-Box Table:");
-        for(int i=0;i<256;i++) {
-            if(i%col==0) out.append("\n");
-            out.append(String.format("%02x ",sbox[i]));
-        }
-
+        out.append(aesHex.lines(sbox,0,256,col,true));
         out.append("\n\nInverse S-Box Table:");
-        for(int i=0;i<256;i++) {
-            if(i%col==0) out.append("\n");
-            out.append(String.format("%02x ",invsb[i]));
-        }
+        out.append(aesHex.lines(invsb,0,256,col,true));
         return out.toString();
     }
 
     public static String stateToString(byte[][] estat) {   
-        StringBuilder sb = new StringBuilder();
-        for(int i=0; i<4; i++) {
-            for(int j=0; j<4; j++)
-                sb.append(String.format("%02x ",estat[i][j]));
-            sb.append("\n");
-        }
+        StringBuilder sb = new StringBuilder(52);
+        for(int i=0; i<4; i++) aesHex.append(sb,estat[i],0,4,true).append("\n");
         return sb.toString();           
     }
     
     public static String keyToString(byte[][][] W, int Nr) {
-        StringBuilder out = new StringBuilder();
+        StringBuilder out = new StringBuilder(33*(Nr+1));
         for(int i=0; i<Nr+1;i++) {
             for(int j=0; j<4; j++) 
                 for(int k=0; k<4; k++)
-                   out.append(String.format("%02x",W[i][k][j]));
+                   aesHex.append(out,W[i][k][j]);
             out.append("\n");
         }
         return out.toString();
     }
 
     public static String getMessage(byte[] M) {
-        StringBuilder out = new StringBuilder();
-        for(int i=0; i<M.length; i++) {
-            if(i%16==0) out.append("\n");
-            out.append(String.format("%02x",M[i]));
-        }
-        return out.toString();
+        return aesHex.lines(M,0,M.length,16,false);
     }
 } // END_CLASS
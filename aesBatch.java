@@ -0,0 +1,138 @@
+// aesBatch.java
+// Ciphers many small messages with the same key in a single call
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.util.Arrays;
+import java.util.List;
+
+// Record i of the batch is stored in data()[offsets()[i]..offsets()[i+1])
+// with the xifrarAES layout, so it can be deciphered with desxifrarAES.
+// All the records are written in one contiguous buffer and IVs are
+// generated at once. CBC encryption of one record is sequential, but the
+// chains of up to LANES records are ciphered together: the next block of
+// each record is gathered into one array and the engine ciphers them in a
+// single encryptBlocks call, so the bulk engines (interleaved, bitsliced,
+// vector, JCE) work on many blocks at once.
+public final class aesBatch {
+
+    // records ciphered together (a pass of the bitsliced engine)
+    private static final int LANES = 64;
+
+    private final byte[] data;
+    private final int[] offsets;
+
+    private aesBatch(byte[] data, int[] offsets) {
+        this.data    = data;
+        this.offsets = offsets;
+    }
+
+    // ciphers every message of M
+    public static aesBatch xifrarAES(List<byte[]> M, aesKey key) {
+        return xifrarAES(M,key,aesIV.SECURE);
+    }
+
+    public static aesBatch xifrarAES(List<byte[]> M, aesKey key, aesIV source) {
+        return xifrarAES(M,key,source,aesEngines.getDefault());
+    }
+
+    public static aesBatch xifrarAES(List<byte[]> M, aesKey key, aesIV source, aesEngine engine) {
+        int n = M.size();
+        int[] offsets = new int[n+1];
+        for(int i=0; i<n; i++) offsets[i+1] = offsets[i]+length(M.get(i).length);
+        byte[] C = new byte[offsets[n]];
+        for(int i=0; i<n; i++) {
+            byte[] m = M.get(i);
+            aes.padMessage(m,0,m.length,C,offsets[i]+16);
+        }
+        return cipher(C,offsets,key,source,engine);
+    }
+
+    // ciphers the messages packed in M: message i is M[from[i]..from[i+1])
+    public static aesBatch xifrarAES(byte[] M, int[] from, aesKey key) {
+        return xifrarAES(M,from,key,aesIV.SECURE);
+    }
+
+    public static aesBatch xifrarAES(byte[] M, int[] from, aesKey key, aesIV source) {
+        return xifrarAES(M,from,key,source,aesEngines.getDefault());
+    }
+
+    public static aesBatch xifrarAES(byte[] M, int[] from, aesKey key, aesIV source, aesEngine engine) {
+        int n = from.length-1;
+        int[] offsets = new int[n+1];
+        for(int i=0; i<n; i++) offsets[i+1] = offsets[i]+length(from[i+1]-from[i]);
+        byte[] C = new byte[offsets[n]];
+        for(int i=0; i<n; i++) aes.padMessage(M,from[i],from[i+1]-from[i],C,offsets[i]+16);
+        return cipher(C,offsets,key,source,engine);
+    }
+
+    // number of records
+    public int size() {
+        return offsets.length-1;
+    }
+
+    // all the records (not a copy)
+    public byte[] data() {
+        return data;
+    }
+
+    // offsets of the records in data() (size()+1 entries, not a copy)
+    public int[] offsets() {
+        return offsets;
+    }
+
+    // record i, as returned by xifrarAES
+    public byte[] get(int i) {
+        return Arrays.copyOfRange(data,offsets[i],offsets[i+1]);
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // ciphertext size of a message of n bytes
+    private static int length(int n) {
+        return 16+(int)aes.paddedLength(n);
+    }
+
+    // adds the IVs and ciphers the padded records of C in place
+    private static aesBatch cipher(byte[] C, int[] offsets, aesKey key, aesIV source, aesEngine engine) {
+        int n = offsets.length-1;
+        // all the IVs in a single call
+        byte[] IVs = new byte[16*n];
+        source.nextIV(IVs,0,IVs.length);
+        for(int i=0; i<n; i++) System.arraycopy(IVs,16*i,C,offsets[i],16);
+        // lanes: next block to cipher and end of the records together, and
+        // their blocks gathered for the engine
+        int[] pos = new int[LANES], end = new int[LANES];
+        byte[] blocks = new byte[16*LANES];
+        // the T-table engine runs the lanes 4 at a time (aes.rijndael4)
+        if(engine==aesEngine.TTABLE) engine = aesEngine.INTERLEAVED;
+        int lanes = 0, next = 0;
+        while(true) {
+            // fill empty lanes with the next records
+            for(; lanes<LANES && next<n; lanes++, next++) {
+                pos[lanes] = offsets[next]+16;
+                end[lanes] = offsets[next+1];
+            }
+            if(lanes==0) break;
+            // one block of each record: xor with previous ciphertext block
+            for(int l=0; l<lanes; l++)
+                for(int j=0; j<16; j++) blocks[16*l+j] = (byte)(C[pos[l]+j]^C[pos[l]+j-16]);
+            engine.encryptBlocks(key,blocks,0,blocks,0,lanes);
+            for(int l=0; l<lanes; l++) System.arraycopy(blocks,16*l,C,pos[l],16);
+            // next blocks, finished records leave their lane
+            for(int l=lanes-1; l>=0; l--) {
+                pos[l]+=16;
+                if(pos[l]==end[l]) {
+                    lanes--;
+                    pos[l] = pos[lanes];
+                    end[l] = end[lanes];
+                }
+            }
+        }
+        return new aesBatch(C,offsets);
+    }
+} // END_CLASS
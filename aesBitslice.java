@@ -0,0 +1,300 @@
+// aesBitslice.java
+// Bitsliced engine: ciphers 64 blocks at once without table lookups
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.util.Arrays;
+
+// 64 blocks are transposed into 128 bit-planes: bit b of plane p is bit p
+// of block b. Every round is then a sequence of word operations over the
+// planes, the same for the 64 blocks:
+//   - byteSub is the boolean circuit of Boyar and Peralta (113 gates)
+//     evaluated on the 8 planes of each byte
+//   - shiftRow moves groups of 8 planes
+//   - mixColumn is xtime and xor over planes
+//   - addRoundKey xors the planes with all zeroes or all ones words
+// There are no data dependent memory accesses (constant time). Groups of
+// less than 64 blocks cost the same as 64, so it only pays for bulk work
+// (encryptBlocks / decryptBlocks); single blocks are correct but slow.
+public final class aesBitslice implements aesEngine {
+
+    // blocks ciphered at once
+    static final int LANES = 64;
+
+    // first plane of byte k of the block (its least significant bit, the
+    // most significant one is at BASE[k]+7), see load
+    private static final int[] BASE = new int[16];
+
+    static {
+        for(int k=0; k<16; k++) BASE[k] = (k<8 ? 0 : 64)+56-8*(k&7);
+    }
+
+    // planes, scratch and key planes of the last key used by each thread,
+    // zeroed when that key is destroyed
+    private static final class Scratch implements aesKey.Copy {
+        final long[] s = new long[128], t = new long[128];
+        volatile aesKey key;
+        long[] kp;
+
+        public synchronized void wipe(aesKey k) {
+            if(key!=k) return;
+            key = null;
+            Arrays.fill(kp,0);
+        }
+    }
+
+    private final ThreadLocal<Scratch> local = ThreadLocal.withInitial(Scratch::new);
+
+    aesBitslice() {
+    }
+
+    public void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+        encryptBlocks(key,in,inOff,out,outOff,1);
+    }
+
+    public void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+        decryptBlocks(key,in,inOff,out,outOff,1);
+    }
+
+    public void encryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        Scratch sc = scratch(key);
+        for(; count>0; count-=LANES, inOff+=16*LANES, outOff+=16*LANES) {
+            int n = Math.min(LANES,count);
+            load(in,inOff,n,sc.s);
+            encrypt(sc.s,sc.t,sc.kp,key.Nr);
+            store(sc.s,out,outOff,n);
+        }
+    }
+
+    public void decryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        Scratch sc = scratch(key);
+        for(; count>0; count-=LANES, inOff+=16*LANES, outOff+=16*LANES) {
+            int n = Math.min(LANES,count);
+            load(in,inOff,n,sc.s);
+            decrypt(sc.s,sc.t,sc.kp,key.Nr);
+            store(sc.s,out,outOff,n);
+        }
+    }
+
+    public String toString() { return "bitsliced"; }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    private Scratch scratch(aesKey key) {
+        key.check();
+        Scratch sc = local.get();
+        if(sc.key!=key) {
+            synchronized(sc) {
+                key.copied(sc);
+                sc.kp  = keyPlanes(key);
+                sc.key = key;
+            }
+        }
+        return sc;
+    }
+
+    // round key r is kp[128*r..128*r+127]: all ones where the key bit is 1
+    private static long[] keyPlanes(aesKey key) {
+        long[] kp = new long[128*(key.Nr+1)];
+        for(int r=0; r<=key.Nr; r++)
+            for(int k=0; k<16; k++) {
+                int b = key.rk[4*r+k/4]>>>(24-8*(k&3));
+                for(int i=0; i<8; i++) kp[128*r+BASE[k]+i] = -((b>>>i)&1L);
+            }
+        return kp;
+    }
+
+    private static void encrypt(long[] s, long[] t, long[] kp, int Nr) {
+        addRoundKey(s,kp,0);
+        for(int r=1; r<Nr; r++) {
+            for(int k=0; k<16; k++) byteSub(s,BASE[k]);
+            shiftRow(s,t,1);
+            mixColumn(s,t);
+            addRoundKey(s,kp,r);
+        }
+        for(int k=0; k<16; k++) byteSub(s,BASE[k]);
+        shiftRow(s,t,1);
+        addRoundKey(s,kp,Nr);
+    }
+
+    // straight inverse cipher (forward round keys in reverse order)
+    private static void decrypt(long[] s, long[] t, long[] kp, int Nr) {
+        addRoundKey(s,kp,Nr);
+        for(int r=Nr-1; r>0; r--) {
+            shiftRow(s,t,3);
+            for(int k=0; k<16; k++) invByteSub(s,BASE[k]);
+            addRoundKey(s,kp,r);
+            invMixColumn(s,t);
+        }
+        shiftRow(s,t,3);
+        for(int k=0; k<16; k++) invByteSub(s,BASE[k]);
+        addRoundKey(s,kp,0);
+    }
+
+    private static void addRoundKey(long[] s, long[] kp, int r) {
+        for(int p=0; p<128; p++) s[p] ^= kp[128*r+p];
+    }
+
+    // row i is rotated d*i columns to the left (d=1 shiftRow, d=3 inverse)
+    private static void shiftRow(long[] s, long[] t, int d) {
+        for(int j=0; j<4; j++)
+            for(int i=0; i<4; i++)
+                System.arraycopy(s,BASE[4*((j+d*i)&3)+i],t,BASE[4*j+i],8);
+        System.arraycopy(t,0,s,0,128);
+    }
+
+    // b_i = 2 a_i + 3 a_i+1 + a_i+2 + a_i+3 = xtime(a_i ^ a_i+1) ^ a_i+1 ^ a_i+2 ^ a_i+3
+    private static void mixColumn(long[] s, long[] t) {
+        for(int j=0; j<4; j++)
+            for(int i=0; i<4; i++) {
+                int a0 = BASE[4*j+i], a1 = BASE[4*j+((i+1)&3)];
+                int a2 = BASE[4*j+((i+2)&3)], a3 = BASE[4*j+((i+3)&3)];
+                long h = s[a0+7]^s[a1+7];
+                for(int b=0; b<8; b++) {
+                    long x = b==0 ? 0 : s[a0+b-1]^s[a1+b-1];
+                    // reduction by x^8 = x^4+x^3+x+1 (0x1B)
+                    if(((0x1B>>b)&1)!=0) x ^= h;
+                    t[a0+b] = x^s[a1+b]^s[a2+b]^s[a3+b];
+                }
+            }
+        System.arraycopy(t,0,s,0,128);
+    }
+
+    // invMixColumn = mixColumn after multiplying by 05 00 04 00:
+    // a_i ^= xtime(xtime(a_i ^ a_i+2))
+    private static void invMixColumn(long[] s, long[] t) {
+        // t is free until mixColumn
+        long[] x = t;
+        for(int j=0; j<4; j++)
+            for(int i=0; i<2; i++) {
+                int a0 = BASE[4*j+i], a2 = BASE[4*j+i+2];
+                for(int b=0; b<8; b++) x[b] = s[a0+b]^s[a2+b];
+                xtime(x);
+                xtime(x);
+                for(int b=0; b<8; b++) {
+                    s[a0+b] ^= x[b];
+                    s[a2+b] ^= x[b];
+                }
+            }
+        mixColumn(s,t);
+    }
+
+    private static void xtime(long[] x) {
+        long h = x[7];
+        for(int b=7; b>0; b--) x[b] = x[b-1];
+        x[0]  = h;
+        x[1] ^= h;
+        x[3] ^= h;
+        x[4] ^= h;
+    }
+
+    // sbox circuit of J. Boyar and R. Peralta, "A depth-16 circuit for the
+    // AES S-box" (2011). U0 and S0 are the most significant bits.
+    private static void byteSub(long[] s, int p) {
+        long U0 = s[p+7], U1 = s[p+6], U2 = s[p+5], U3 = s[p+4];
+        long U4 = s[p+3], U5 = s[p+2], U6 = s[p+1], U7 = s[p];
+        // top linear transformation
+        long T1 = U0^U3, T2 = U0^U5, T3 = U0^U6, T4 = U3^U5, T5 = U4^U6, T6 = T1^T5;
+        long T7 = U1^U2, T8 = U7^T6, T9 = U7^T7, T10 = T6^T7, T11 = U1^U5, T12 = U2^U5;
+        long T13 = T3^T4, T14 = T6^T11, T15 = T5^T11, T16 = T5^T12, T17 = T9^T16;
+        long T18 = U3^U7, T19 = T7^T18, T20 = T1^T19, T21 = U6^U7, T22 = T7^T21;
+        long T23 = T2^T22, T24 = T2^T10, T25 = T20^T17, T26 = T3^T16, T27 = T1^T12;
+        // shared non linear part (inversion in GF(2^8))
+        long M1 = T13&T6, M2 = T23&T8, M3 = T14^M1, M4 = T19&U7, M5 = M4^M1, M6 = T3&T16;
+        long M7 = T22&T9, M8 = T26^M6, M9 = T20&T17, M10 = M9^M6, M11 = T1&T15;
+        long M12 = T4&T27, M13 = M12^M11, M14 = T2&T10, M15 = M14^M11, M16 = M3^M2;
+        long M17 = M5^T24, M18 = M8^M7, M19 = M10^M15, M20 = M16^M13, M21 = M17^M15;
+        long M22 = M18^M13, M23 = M19^T25, M24 = M22^M23, M25 = M22&M20, M26 = M21^M25;
+        long M27 = M20^M21, M28 = M23^M25, M29 = M28&M27, M30 = M26&M24, M31 = M20&M23;
+        long M32 = M27&M31, M33 = M27^M25, M34 = M21&M22, M35 = M24&M34, M36 = M24^M25;
+        long M37 = M21^M29, M38 = M32^M33, M39 = M23^M30, M40 = M35^M36, M41 = M38^M40;
+        long M42 = M37^M39, M43 = M37^M38, M44 = M39^M40, M45 = M42^M41;
+        long M46 = M44&T6, M47 = M40&T8, M48 = M39&U7, M49 = M43&T16, M50 = M38&T9;
+        long M51 = M37&T17, M52 = M42&T15, M53 = M45&T27, M54 = M41&T10, M55 = M44&T13;
+        long M56 = M40&T23, M57 = M39&T19, M58 = M43&T3, M59 = M38&T22, M60 = M37&T20;
+        long M61 = M42&T1, M62 = M45&T4, M63 = M41&T2;
+        // bottom linear transformation (affine transformation included)
+        long L0 = M61^M62, L1 = M50^M56, L2 = M46^M48, L3 = M47^M55, L4 = M54^M58;
+        long L5 = M49^M61, L6 = M62^L5, L7 = M46^L3, L8 = M51^M59, L9 = M52^M53;
+        long L10 = M53^L4, L11 = M60^L2, L12 = M48^M51, L13 = M50^L0, L14 = M52^M61;
+        long L15 = M55^L1, L16 = M56^L0, L17 = M57^L1, L18 = M58^L8, L19 = M63^L4;
+        long L20 = L0^L1, L21 = L1^L7, L22 = L3^L12, L23 = L18^L2, L24 = L15^L9;
+        long L25 = L6^L10, L26 = L7^L9, L27 = L8^L10, L28 = L11^L14, L29 = L11^L17;
+        s[p+7] = L6^L24;
+        s[p+6] = ~(L16^L26);
+        s[p+5] = ~(L19^L28);
+        s[p+4] = L6^L21;
+        s[p+3] = L20^L22;
+        s[p+2] = L25^L29;
+        s[p+1] = ~(L13^L27);
+        s[p]   = ~(L6^L23);
+    }
+
+    // sbox is A(inv(x)) with A(x) = L(x)^63, so
+    // invsb(y) = inv(A^-1(y)) = A^-1(sbox(A^-1(y))) where A^-1(y) = L^-1(y)^05
+    private static void invByteSub(long[] s, int p) {
+        invAffine(s,p);
+        byteSub(s,p);
+        invAffine(s,p);
+    }
+
+    // L^-1(y) = (y <<< 1) ^ (y <<< 3) ^ (y <<< 6), then xor 05
+    private static void invAffine(long[] s, int p) {
+        long y0 = s[p], y1 = s[p+1], y2 = s[p+2], y3 = s[p+3];
+        long y4 = s[p+4], y5 = s[p+5], y6 = s[p+6], y7 = s[p+7];
+        s[p]   = ~(y7^y5^y2);
+        s[p+1] = y0^y6^y3;
+        s[p+2] = ~(y1^y7^y4);
+        s[p+3] = y2^y0^y5;
+        s[p+4] = y3^y1^y6;
+        s[p+5] = y4^y2^y7;
+        s[p+6] = y5^y3^y0;
+        s[p+7] = y6^y4^y1;
+    }
+
+    // n blocks of in (the rest of the lanes are zero) to planes: the two
+    // halves of the blocks are two 64x64 bit matrices transposed
+    private static void load(byte[] in, int off, int n, long[] s) {
+        for(int b=0; b<LANES; b++) {
+            s[b]    = b<n ? getLong(in,off+16*b) : 0;
+            s[64+b] = b<n ? getLong(in,off+16*b+8) : 0;
+        }
+        transpose(s,0);
+        transpose(s,64);
+    }
+
+    private static void store(long[] s, byte[] out, int off, int n) {
+        transpose(s,0);
+        transpose(s,64);
+        for(int b=0; b<n; b++) {
+            putLong(out,off+16*b,s[b]);
+            putLong(out,off+16*b+8,s[64+b]);
+        }
+    }
+
+    // transposes the 64x64 bit matrix a[off..off+63] (bit c of a[off+r]
+    // swaps with bit r of a[off+c]) exchanging blocks of 32, 16, ... 1 bits
+    private static void transpose(long[] a, int off) {
+        long m = 0x00000000FFFFFFFFL;
+        for(int j=32; j!=0; j>>=1, m ^= m<<j)
+            for(int k=0; k<64; k=((k|j)+1)&~j) {
+                long t = ((a[off+k]>>>j)^a[off+(k|j)])&m;
+                a[off+k]     ^= t<<j;
+                a[off+(k|j)] ^= t;
+            }
+    }
+
+    private static long getLong(byte[] b, int i) {
+        long l = 0;
+        for(int j=0; j<8; j++) l = l<<8 | (0xFF&b[i+j]);
+        return l;
+    }
+
+    private static void putLong(byte[] b, int i, long l) {
+        for(int j=7; j>=0; j--, l>>>=8) b[i+j] = (byte)l;
+    }
+} // END_CLASS
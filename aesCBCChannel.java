@@ -0,0 +1,47 @@
+// aesCBCChannel.java
+// Channel version of aesCBCOutputStream
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+
+// Ciphers the bytes written to it and writes them to channel with the
+// xifrarAES layout. Closing the channel writes the padding and the length
+// trailer and closes the underlying channel.
+public class aesCBCChannel implements WritableByteChannel {
+
+    private final aesCBCOutputStream out;
+    private boolean open = true;
+
+    public aesCBCChannel(WritableByteChannel channel, aesKey key) {
+        this(channel,key,aesEngines.getDefault());
+    }
+
+    public aesCBCChannel(WritableByteChannel channel, aesKey key, aesEngine engine) {
+        this.out = new aesCBCOutputStream(Channels.newOutputStream(channel),key,engine);
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException {
+        if(!open) throw new ClosedChannelException();
+        return out.write(src);
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(!open) return;
+        open = false;
+        out.close();
+    }
+} // END_CLASS
@@ -0,0 +1,158 @@
+// aesCBCInputStream.java
+// Streaming version of aes.desxifrarAES
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Deciphers the layout written by xifrarAES or aesCBCOutputStream using a
+// fixed size buffer. The length trailer is only known at the end of the
+// stream, so the last two deciphered blocks (the ones that can hold
+// padding) are held back until the underlying stream is exhausted.
+public class aesCBCInputStream extends FilterInputStream {
+
+    // buffer size (multiple of the block size)
+    private static final int BUFFER = 8192;
+    // deciphered bytes held back until the end of the stream
+    private static final int HELD = 32;
+
+    private final aesKey key;
+    private final aesEngine engine;
+    // previous ciphertext block (IV at the beginning)
+    private final byte[] prev = new byte[16];
+    private final byte[] next = new byte[16];
+    // buf[pos..limit) can be read, buf[limit..end) is held back and
+    // buf[end..end+raw) is ciphertext of an incomplete block
+    private final byte[] buf = new byte[BUFFER+HELD+16];
+    private int pos, limit, end, raw;
+    // message offset of buf[0]
+    private long base;
+    private boolean started, eof;
+    // truncated or corrupted ciphertext: thrown again by every later read
+    private IOException failure;
+
+    public aesCBCInputStream(InputStream in, aesKey key) {
+        this(in,key,aesEngines.getDefault());
+    }
+
+    public aesCBCInputStream(InputStream in, aesKey key, aesEngine engine) {
+        super(in);
+        this.key    = key;
+        this.engine = engine;
+    }
+
+    @Override
+    public int read() throws IOException {
+        while(pos==limit) {
+            if(eof) return -1;
+            fill();
+        }
+        return 0xFF&buf[pos++];
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if((off|len|(off+len)|(b.length-off-len))<0) throw new IndexOutOfBoundsException();
+        if(len==0) return 0;
+        while(pos==limit) {
+            if(eof) return -1;
+            fill();
+        }
+        int k = Math.min(len,limit-pos);
+        System.arraycopy(buf,pos,b,off,k);
+        pos+=k;
+        return k;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while(skipped<n) {
+            while(pos==limit) {
+                if(eof) return skipped;
+                fill();
+            }
+            int k = (int)Math.min(n-skipped,limit-pos);
+            pos+=k;
+            skipped+=k;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return limit-pos;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readlimit) {
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // reads and deciphers more data from the underlying stream
+    private void fill() throws IOException {
+        if(failure!=null) throw failure;
+        if(!started) {
+            // first block of data is IV
+            if(readFully(prev)<16) throw fail("truncated ciphertext");
+            started = true;
+        }
+        // move held back and raw bytes to the beginning of buf
+        System.arraycopy(buf,pos,buf,0,end+raw-pos);
+        base+=pos; limit-=pos; end-=pos; pos=0;
+        int r = in.read(buf,end+raw,buf.length-end-raw);
+        if(r<0) {
+            finish();
+            return;
+        }
+        raw+=r;
+        // decipher whole blocks in place
+        for(; raw>=16; end+=16, raw-=16) {
+            System.arraycopy(buf,end,next,0,16);
+            engine.decryptBlock(key,buf,end,buf,end);
+            for(int j=0; j<16; j++) buf[end+j] ^= prev[j];
+            System.arraycopy(next,0,prev,0,16);
+        }
+        limit = Math.max(pos,end-HELD);
+    }
+
+    // end of the underlying stream: the last 8 bytes are the length trailer
+    private void finish() throws IOException {
+        if(raw!=0 || end<16) throw fail("truncated ciphertext");
+        long size = 0;
+        for(int i=end-8; i<end; i++) size = size<<8 | (0xFF&buf[i]);
+        size/=8;
+        // WARNING!!: it can fail if key is not correct, and data size are random bits,
+        if(size<base+limit || size>base+end-9) throw fail("wrong key or corrupted ciphertext");
+        limit = (int)(size-base);
+        eof = true;
+    }
+
+    // the stream does not end cleanly after a failure
+    private IOException fail(String message) {
+        return failure = new IOException(message);
+    }
+
+    private int readFully(byte[] b) throws IOException {
+        int n = 0;
+        for(int r; n<b.length && (r=in.read(b,n,b.length-n))>=0; n+=r);
+        return n;
+    }
+} // END_CLASS
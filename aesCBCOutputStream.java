@@ -0,0 +1,149 @@
+// aesCBCOutputStream.java
+// Streaming version of aes.xifrarAES
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+// Ciphers the data written to it in CBC mode using a fixed size buffer and
+// writes the same layout as xifrarAES (IV block, data, 0x80 and 0x00
+// padding and the 8 bytes length trailer), so the result can be deciphered
+// with desxifrarAES or aesCBCInputStream. The trailer is written by
+// finish() or close(); messages are not limited to 2GB.
+public class aesCBCOutputStream extends FilterOutputStream {
+
+    // buffer size (multiple of the block size)
+    private static final int BUFFER = 8192;
+
+    private final aesKey key;
+    private final aesEngine engine;
+    // previous ciphertext block (IV at the beginning)
+    private final byte[] prev = new byte[16];
+    // plaintext waiting to be ciphered
+    private final byte[] buf = new byte[BUFFER];
+    private int n;
+    // message bytes written so far
+    private long count;
+    private boolean started, finished, closed;
+
+    public aesCBCOutputStream(OutputStream out, aesKey key) {
+        this(out,key,aesEngines.getDefault());
+    }
+
+    public aesCBCOutputStream(OutputStream out, aesKey key, aesEngine engine) {
+        super(out);
+        this.key    = key;
+        this.engine = engine;
+        aes.randomIV(prev,0);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if(n==BUFFER) cipherBuffer();
+        buf[n++] = (byte)b;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if((off|len|(off+len)|(b.length-off-len))<0) throw new IndexOutOfBoundsException();
+        while(len>0) {
+            if(n==BUFFER) cipherBuffer();
+            int k = Math.min(len,BUFFER-n);
+            System.arraycopy(b,off,buf,n,k);
+            n+=k; off+=k; len-=k; count+=k;
+        }
+    }
+
+    // writes the remaining bytes of src (used by aesCBCChannel)
+    int write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        int len = src.remaining();
+        while(src.hasRemaining()) {
+            if(n==BUFFER) cipherBuffer();
+            int k = Math.min(src.remaining(),BUFFER-n);
+            src.get(buf,n,k);
+            n+=k; count+=k;
+        }
+        return len;
+    }
+
+    // only whole blocks are flushed, the last partial block stays buffered
+    @Override
+    public void flush() throws IOException {
+        if(!finished && n>=16) {
+            int full = n-n%16;
+            cipher(full);
+            System.arraycopy(buf,full,buf,0,n-full);
+            n-=full;
+        }
+        out.flush();
+    }
+
+    // pads the message and writes the last blocks without closing the
+    // underlying stream
+    public void finish() throws IOException {
+        if(finished) return;
+        // add 0x80, zeroes until 8 bytes are left in the block and the
+        // message length in bits (see aes.IVpadMessage)
+        long bits = 8*count;
+        put((byte)0x80);
+        while(n%16!=8) put((byte)0);
+        for(int i=56; i>=0; i-=8) put((byte)(bits>>>i));
+        cipher(n);
+        n = 0;
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    private void put(byte b) throws IOException {
+        if(n==BUFFER) cipherBuffer();
+        buf[n++] = b;
+    }
+
+    private void cipherBuffer() throws IOException {
+        cipher(BUFFER);
+        n = 0;
+    }
+
+    // ciphers and writes the first len bytes of buf (whole blocks)
+    private void cipher(int len) throws IOException {
+        if(!started) {
+            // first block of data is IV
+            out.write(prev);
+            started = true;
+        }
+        for(int i=0; i<len; i+=16) {
+            // xor plaintext block with previous ciphertext block
+            for(int j=0; j<16; j++) buf[i+j] ^= prev[j];
+            engine.encryptBlock(key,buf,i,buf,i);
+            System.arraycopy(buf,i,prev,0,16);
+        }
+        out.write(buf,0,len);
+    }
+
+    private void ensureOpen() throws IOException {
+        if(finished) throw new IOException("stream finished");
+    }
+} // END_CLASS
@@ -0,0 +1,145 @@
+// aesCBCRange.java
+// Random access decryption of xifrarAES ciphertexts
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// In CBC, plaintext block i only depends on ciphertext blocks i and i-1:
+// M[i] = D(C[i]) ^ C[i-1], with C[-1] the IV (first block of the
+// xifrarAES layout). A range of the message is deciphered reading only the
+// blocks that cover it plus the one before, so the cost does not depend
+// on the message size. The length of the message is in the last 8 bytes
+// of the padding: one or two blocks at the end (see aes.IVpadMessage).
+//
+// Ciphertexts can be in a byte[], in the remaining bytes of a ByteBuffer
+// (its position is not modified) or in a whole file.
+public final class aesCBCRange {
+
+    private aesCBCRange() {
+    }
+
+    // length of the message ciphered in C
+    public static long length(byte[] C, aesKey key) {
+        checkSize(C.length);
+        return size(C,C.length-32,C.length,key);
+    }
+
+    public static long length(ByteBuffer C, aesKey key) {
+        int m = C.remaining();
+        checkSize(m);
+        byte[] c = new byte[32];
+        C.get(C.position()+m-32,c);
+        return size(c,0,m,key);
+    }
+
+    public static long length(FileChannel C, aesKey key) throws IOException {
+        long m = C.size();
+        try {
+            checkSize(m);
+            return size(read(C,m-32,32),0,m,key);
+        } catch(IllegalArgumentException e) {
+            throw new IOException(e.getMessage(),e);
+        }
+    }
+
+    // bytes [from, from+len) of the message ciphered in C
+    public static byte[] desxifrarAES(byte[] C, aesKey key, long from, int len) {
+        return desxifrarAES(C,key,aesEngines.getDefault(),from,len);
+    }
+
+    public static byte[] desxifrarAES(byte[] C, aesKey key, aesEngine engine, long from, int len) {
+        checkRange(length(C,key),from,len);
+        byte[] M = new byte[len];
+        if(len>0) decrypt(C,(int)(from/16*16),(int)(from%16),M,0,len,key,engine);
+        return M;
+    }
+
+    public static byte[] desxifrarAES(ByteBuffer C, aesKey key, long from, int len) {
+        checkRange(length(C,key),from,len);
+        byte[] M = new byte[len];
+        if(len>0) {
+            // predecessor block and the blocks of the range
+            int first = (int)(from/16*16);
+            byte[] c = new byte[(int)((from+len+15)/16*16)-first+16];
+            C.get(C.position()+first,c);
+            decrypt(c,0,(int)(from%16),M,0,len,key,aesEngines.getDefault());
+        }
+        return M;
+    }
+
+    public static byte[] desxifrarAES(FileChannel C, aesKey key, long from, int len) throws IOException {
+        long n = length(C,key);
+        try {
+            checkRange(n,from,len);
+        } catch(IndexOutOfBoundsException e) {
+            throw new IOException(e.getMessage(),e);
+        }
+        byte[] M = new byte[len];
+        if(len>0) {
+            long first = from/16*16;
+            byte[] c = read(C,first,(int)((from+len+15)/16*16-first)+16);
+            decrypt(c,0,(int)(from%16),M,0,len,key,aesEngines.getDefault());
+        }
+        return M;
+    }
+
+    // c[off] is the block before the range (IV for the first block), the
+    // len message bytes start at skip in the next block and go to M[mOff]
+    // (also used by aesChunked)
+    static void decrypt(byte[] c, int off, int skip, byte[] M, int mOff, int len, aesKey key, aesEngine engine) {
+        int blocks = (skip+len+15)/16;
+        byte[] d = new byte[16*blocks];
+        engine.decryptBlocks(key,c,off+16,d,0,blocks);
+        for(int i=0; i<len; i++) M[mOff+i] = (byte)(d[skip+i]^c[off+skip+i]);
+    }
+
+    // message length in the last 8 bytes d[off..off+8) of a deciphered
+    // padded message of m bytes (the ciphertext without IV). Checks that
+    // the padding is one or two blocks: a wrong key gives a random length.
+    // (also used by aes.desxifrarAES and aesService)
+    static long messageLength(byte[] d, int off, long m) {
+        long size = 0;
+        for(int j=0; j<8; j++) size = size<<8 | (0xFF&d[off+j]);
+        size/=8;
+        // WARNING!!: it can fail if key is not correct, and data size are random bits,
+        if(size<0 || size>m-9 || size<m-32) throw new IllegalArgumentException("wrong key or corrupted ciphertext");
+        return size;
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // c[off..off+32) are the last two blocks of a ciphertext of m bytes
+    private static long size(byte[] c, int off, long m, aesKey key) {
+        byte[] last = new byte[16];
+        key.decryptBlock(c,off+16,last,0);
+        for(int j=8; j<16; j++) last[j] ^= c[off+j];
+        return messageLength(last,8,m-16);
+    }
+
+    // IV and at least one block
+    private static void checkSize(long m) {
+        if(m<32 || m%16!=0) throw new IllegalArgumentException("truncated ciphertext");
+    }
+
+    private static byte[] read(FileChannel ch, long pos, int len) throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        for(long p=pos; b.hasRemaining(); ) {
+            int r = ch.read(b,p);
+            if(r<0) throw new IOException("unexpected end of file");
+            p+=r;
+        }
+        return b.array();
+    }
+
+    private static void checkRange(long n, long from, int len) {
+        if(from<0 || len<0 || from+len>n)
+            throw new IndexOutOfBoundsException("range ["+ from +", "+ (from+len) +") of a message of "+ n +" bytes");
+    }
+} // END_CLASS
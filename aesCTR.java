@@ -0,0 +1,149 @@
+// aesCTR.java
+// Counter (CTR) mode of operation
+// http://csrc.nist.gov/publications/nistpubs/800-38a/sp800-38a.pdf
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Keystream block i is the cipher of IV+i (128 bits counter), so any
+// position of the stream can be reached directly and blocks can be
+// computed in parallel. Ciphering and deciphering are the same operation
+// and there is no padding. Instances are immutable and thread safe.
+public final class aesCTR {
+
+    // bytes of keystream computed by a single parallel task
+    private static final int PARALLEL_CHUNK = 1<<16;
+    // keystream blocks given to the engine at once (also aesGCM)
+    static final int BATCH = aesBitslice.LANES;
+
+    private final aesKey key;
+    private final aesEngine engine;
+    // initial counter block as two big endian longs
+    private final long ctrHi, ctrLo;
+    // only the low 32 bits of the counter are incremented (GCM inc32)
+    private final boolean inc32;
+
+    public aesCTR(aesKey key, byte[] IV) {
+        this(key,IV,aesEngines.getDefault());
+    }
+
+    public aesCTR(aesKey key, byte[] IV, aesEngine engine) {
+        this(key,IV,engine,false);
+    }
+
+    // keystream of GCM: IV+i (mod 2^32) in the last 32 bits (see aesGCM)
+    aesCTR(aesKey key, byte[] IV, aesEngine engine, boolean inc32) {
+        if(IV.length!=16) throw new IllegalArgumentException("IV must be 16 bytes");
+        this.key    = key;
+        this.engine = engine;
+        this.ctrHi  = getLong(IV,0);
+        this.ctrLo  = getLong(IV,8);
+        this.inc32  = inc32;
+    }
+
+    // xors len bytes from in with the keystream starting at byte pos of
+    // the stream and stores them in out (in and out can be the same)
+    public void process(byte[] in, int inOff, byte[] out, int outOff, int len, long pos) {
+        process(in,inOff,out,outOff,len,pos,ForkJoinPool.commonPool(),aes.PARALLEL_THRESHOLD);
+    }
+
+    // same as above, buffers of threshold bytes or more are split in
+    // chunks processed by pool
+    public void process(byte[] in, int inOff, byte[] out, int outOff, int len, long pos,
+                        ForkJoinPool pool, int threshold) {
+        if(len<threshold) xorKeystream(in,inOff,out,outOff,len,pos);
+        else pool.invoke(new ParallelCTR(in,inOff,out,outOff,len,pos));
+    }
+
+    // ciphers M with a random IV: result is IV followed by len(M) bytes
+    public static byte[] xifrarCTR(byte[] M, aesKey key) {
+        byte[] C = new byte[M.length+16];
+        aes.randomIV(C,0);
+        new aesCTR(key,Arrays.copyOf(C,16)).process(M,0,C,16,M.length,0);
+        return C;
+    }
+
+    public static byte[] desxifrarCTR(byte[] C, aesKey key) {
+        byte[] M = new byte[C.length-16];
+        new aesCTR(key,Arrays.copyOf(C,16)).process(C,16,M,0,M.length,0);
+        return M;
+    }
+
+    // stores keystream blocks block to block+n-1 in ks, ciphered with one
+    // engine call (n is BATCH at most to keep the window in cache)
+    void keystream(long block, byte[] ks, int n) {
+        for(int i=0; i<n; i++) counter(block++,ks,16*i);
+        engine.encryptBlocks(key,ks,0,ks,0,n);
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    private void xorKeystream(byte[] in, int inOff, byte[] out, int outOff, int len, long pos) {
+        long block = pos>>>4;
+        int skip   = (int)(pos&15);
+        // keystream of up to BATCH blocks ciphered with one engine call
+        int blocks = Math.min(BATCH,(skip+len+15)/16);
+        byte[] ks  = new byte[16*blocks];
+        while(len>0) {
+            int n = Math.min(blocks,(skip+len+15)/16);
+            // keystream block = E(IV+block)
+            keystream(block,ks,n);
+            block+=n;
+            int k = Math.min(16*n-skip,len);
+            for(int i=0; i<k; i++) out[outOff+i] = (byte)(in[inOff+i]^ks[skip+i]);
+            inOff+=k; outOff+=k; len-=k; skip=0;
+        }
+    }
+
+    // stores IV+block (mod 2^128, or 2^32 with inc32) in ctr[off]
+    private void counter(long block, byte[] ctr, int off) {
+        long lo = ctrLo+block;
+        long hi = ctrHi+(Long.compareUnsigned(lo,ctrLo)<0 ? 1 : 0);
+        if(inc32) {
+            lo = ctrLo&0xFFFFFFFF00000000L | lo&0xFFFFFFFFL;
+            hi = ctrHi;
+        }
+        putLong(ctr,off,hi);
+        putLong(ctr,off+8,lo);
+    }
+
+    private static long getLong(byte[] b, int i) {
+        long l = 0;
+        for(int j=0; j<8; j++) l = l<<8 | (0xFF&b[i+j]);
+        return l;
+    }
+
+    private static void putLong(byte[] b, int i, long l) {
+        for(int j=7; j>=0; j--, l>>>=8) b[i+j] = (byte)l;
+    }
+
+    private final class ParallelCTR extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final byte[] in, out;
+        private final int inOff, outOff, len;
+        private final long pos;
+
+        ParallelCTR(byte[] in, int inOff, byte[] out, int outOff, int len, long pos) {
+            this.in = in; this.inOff = inOff; this.out = out; this.outOff = outOff;
+            this.len = len; this.pos = pos;
+        }
+
+        @Override
+        protected void compute() {
+            if(len<=PARALLEL_CHUNK) xorKeystream(in,inOff,out,outOff,len,pos);
+            else {
+                // split at a keystream block boundary
+                int half = (int)(((pos+len/2)&~15L)-pos);
+                invokeAll(new ParallelCTR(in,inOff,out,outOff,half,pos),
+                          new ParallelCTR(in,inOff+half,out,outOff+half,len-half,pos+half));
+            }
+        }
+    }
+} // END_CLASS
@@ -0,0 +1,292 @@
+// aesChunked.java
+// Chunked container: messages split in chunks ciphered independently
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
+
+// xifrarAES is a single CBC chain, so only one core can cipher a message.
+// Here the message is split in chunks of chunkSize bytes (the last one can
+// be shorter) and every chunk is a xifrarAES ciphertext with its own IV
+// and padding. Chunks are ciphered and deciphered in parallel, and any
+// chunk (or range of the message) can be read alone.
+//
+// Layout (integers are big endian):
+//   header  "AESC", version (1 byte), 3 zero bytes, chunkSize (int)
+//   chunks  IV || CBC(IVpadMessage(chunk)) for every chunk
+//   index   end offset (long) of every chunk from the start of the header
+//   footer  message length (long), number of chunks (int), "AESC"
+// The index is written after the chunks so aesChunkedOutputStream can
+// emit them before knowing how many there will be; readers find it from
+// the fixed size footer.
+public final class aesChunked {
+
+    public static final int DEFAULT_CHUNK = 1<<20;
+
+    static final int MAGIC   = 0x41455343;
+    static final int VERSION = 1;
+    static final int HEADER  = 12, FOOTER = 16;
+
+    private aesChunked() {
+    }
+
+    // ciphers M in chunks of DEFAULT_CHUNK bytes in the common pool
+    public static byte[] xifrarAES(byte[] M, aesKey key) {
+        return xifrarAES(M,key,DEFAULT_CHUNK,ForkJoinPool.commonPool());
+    }
+
+    public static byte[] xifrarAES(byte[] M, aesKey key, int chunkSize, ForkJoinPool pool) {
+        checkChunkSize(chunkSize);
+        int n = chunks(M.length,chunkSize);
+        long size = HEADER+8L*n+FOOTER;
+        for(int i=0; i<n; i++) size+=chunkLength(chunkBytes(M.length,chunkSize,i));
+        if(size>Integer.MAX_VALUE-8) throw new IllegalArgumentException("message too long for a byte[]");
+        byte[] C = new byte[(int)size];
+        ByteBuffer b = ByteBuffer.wrap(C);
+        writeHeader(b,chunkSize);
+        // offsets of the chunks
+        long[] end = new long[n];
+        for(int i=0; i<n; i++) end[i] = (i==0 ? HEADER : end[i-1])+chunkLength(chunkBytes(M.length,chunkSize,i));
+        aesEngine engine = aesEngines.getDefault();
+        pool.invoke(new ParallelChunks(0,n,i -> {
+            int from = (int)(i==0 ? HEADER : end[i-1]);
+            encryptChunk(M,i*chunkSize,chunkBytes(M.length,chunkSize,i),C,from,key,engine);
+        }));
+        b.position((int)(n==0 ? HEADER : end[n-1]));
+        writeIndex(b,end,n,M.length);
+        return C;
+    }
+
+    // deciphers a container of xifrarAES in the common pool
+    public static byte[] desxifrarAES(byte[] C, aesKey key) {
+        return desxifrarAES(C,key,ForkJoinPool.commonPool());
+    }
+
+    public static byte[] desxifrarAES(byte[] C, aesKey key, ForkJoinPool pool) {
+        Reader r;
+        try {
+            r = new Reader(new Source(C,null),key);
+        } catch(IOException e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+        if(r.length>Integer.MAX_VALUE-8) throw new IllegalArgumentException("message too long for a byte[]");
+        byte[] M = new byte[(int)r.length];
+        aesEngine engine = aesEngines.getDefault();
+        pool.invoke(new ParallelChunks(0,r.chunks(),i -> {
+            int from = (int)r.start(i);
+            int n    = chunkBytes(M.length,r.chunkSize,i);
+            if(!decryptChunk(C,from,n,M,i*r.chunkSize,key,engine))
+                throw new IllegalArgumentException("wrong key or corrupted chunk "+ i);
+        }));
+        return M;
+    }
+
+    // random access to the chunks of a container in memory or in a file
+    public static Reader reader(byte[] C, aesKey key) throws IOException {
+        return new Reader(new Source(C,null),key);
+    }
+
+    public static Reader reader(FileChannel C, aesKey key) throws IOException {
+        return new Reader(new Source(null,C),key);
+    }
+
+    public static final class Reader {
+        private final Source src;
+        private final aesKey key;
+        private final int chunkSize;
+        private final long length;
+        private final long[] end;
+
+        private Reader(Source src, aesKey key) throws IOException {
+            this.src = src;
+            this.key = key;
+            long size = src.size();
+            if(size<HEADER+FOOTER) throw new IOException("truncated container");
+            ByteBuffer h = ByteBuffer.wrap(src.read(0,HEADER));
+            if(h.getInt()!=MAGIC || h.getInt()!=VERSION<<24) throw new IOException("not an aesChunked container");
+            chunkSize = h.getInt();
+            ByteBuffer f = ByteBuffer.wrap(src.read(size-FOOTER,FOOTER));
+            length = f.getLong();
+            int n  = f.getInt();
+            if(f.getInt()!=MAGIC || chunkSize<16 || chunkSize%16!=0 || length<0 || n!=aesChunked.chunks(length,chunkSize)
+               || size!=HEADER+8L*n+FOOTER+(n==0 ? 0 : (n-1)*(long)chunkLength(chunkSize)+chunkLength(chunkBytes(length,chunkSize,n-1))))
+                throw new IOException("corrupted container");
+            // the index must agree with the chunk sizes
+            end = new long[n];
+            ByteBuffer x = ByteBuffer.wrap(src.read(size-FOOTER-8L*n,8*n));
+            for(int i=0; i<n; i++) {
+                end[i] = x.getLong();
+                if(end[i]!=(i==0 ? HEADER : end[i-1])+chunkLength(chunkBytes(length,chunkSize,i)))
+                    throw new IOException("corrupted container index");
+            }
+            // the length trailer of the last chunk checks the key
+            if(n>0) {
+                byte[] c = src.read(end[n-1]-32,32);
+                byte[] last = new byte[16];
+                key.decryptBlock(c,16,last,0);
+                long bits = 0;
+                for(int j=8; j<16; j++) bits = bits<<8 | (0xFF&(last[j]^c[j]));
+                if(bits!=8L*chunkBytes(length,chunkSize,n-1)) throw new IOException("wrong key or corrupted container");
+            }
+        }
+
+        // message length
+        public long length() {
+            return length;
+        }
+
+        public int chunks() {
+            return end.length;
+        }
+
+        public int chunkSize() {
+            return chunkSize;
+        }
+
+        // plaintext of chunk i
+        public byte[] readChunk(int i) throws IOException {
+            if(i<0 || i>=end.length) throw new IndexOutOfBoundsException("chunk "+ i +" of "+ end.length);
+            int n = chunkBytes(length,chunkSize,i);
+            byte[] c = src.read(start(i),(int)(end[i]-start(i)));
+            byte[] M = new byte[n];
+            if(!decryptChunk(c,0,n,M,0,key,aesEngines.getDefault()))
+                throw new IOException("wrong key or corrupted chunk "+ i);
+            return M;
+        }
+
+        // bytes [from, from+len) of the message, only the blocks of the
+        // range (and the previous one of each chunk) are read
+        public byte[] read(long from, int len) throws IOException {
+            if(from<0 || len<0 || from+len>length)
+                throw new IndexOutOfBoundsException("range ["+ from +", "+ (from+len) +") of a message of "+ length +" bytes");
+            byte[] M = new byte[len];
+            for(int done=0; done<len; ) {
+                long pos = from+done;
+                int i    = (int)(pos/chunkSize);
+                int skip = (int)(pos%chunkSize);
+                int k    = Math.min(len-done,chunkBytes(length,chunkSize,i)-skip);
+                // previous block (IV for the first one) and the blocks of the range
+                int first = skip/16*16;
+                byte[] c  = src.read(start(i)+first,(skip+k+15)/16*16-first+16);
+                aesCBCRange.decrypt(c,0,skip%16,M,done,k,key,aesEngines.getDefault());
+                done+=k;
+            }
+            return M;
+        }
+
+        private long start(int i) {
+            return i==0 ? HEADER : end[i-1];
+        }
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // ciphertext size of a chunk of n bytes
+    static int chunkLength(int n) {
+        return 16+(int)aes.paddedLength(n);
+    }
+
+    static int chunks(long length, int chunkSize) {
+        return (int)((length+chunkSize-1)/chunkSize);
+    }
+
+    // bytes of chunk i
+    static int chunkBytes(long length, int chunkSize, int i) {
+        return (int)Math.min(chunkSize,length-(long)i*chunkSize);
+    }
+
+    static void checkChunkSize(int chunkSize) {
+        if(chunkSize<16 || chunkSize%16!=0) throw new IllegalArgumentException("chunk size must be a positive multiple of 16");
+    }
+
+    static void writeHeader(ByteBuffer b, int chunkSize) {
+        b.putInt(MAGIC).putInt(VERSION<<24).putInt(chunkSize);
+    }
+
+    static void writeIndex(ByteBuffer b, long[] end, int n, long length) {
+        for(int i=0; i<n; i++) b.putLong(end[i]);
+        b.putLong(length).putInt(n).putInt(MAGIC);
+    }
+
+    // ciphers n bytes of M[mOff] to C[cOff] (chunkLength(n) bytes) with a
+    // random IV
+    static void encryptChunk(byte[] M, int mOff, int n, byte[] C, int cOff, aesKey key, aesEngine engine) {
+        aes.randomIV(C,cOff);
+        aes.padMessage(M,mOff,n,C,cOff+16);
+        aes.encryptCBC(C,cOff+16,cOff+chunkLength(n),key,engine);
+    }
+
+    // deciphers the chunk of n bytes at C[cOff] into M[mOff], false if its
+    // length trailer is not n (wrong key or corrupted chunk)
+    static boolean decryptChunk(byte[] C, int cOff, int n, byte[] M, int mOff, aesKey key, aesEngine engine) {
+        int full = n-n%16, end = cOff+chunkLength(n);
+        // whole blocks straight to M, the last ones (data and padding) apart
+        // so they do not write over the next chunk
+        aes.decryptCBC(C,cOff+16,cOff+16+full,M,mOff,key,engine);
+        byte[] tail = new byte[end-cOff-16-full];
+        aes.decryptCBC(C,cOff+16+full,end,tail,0,key,engine);
+        System.arraycopy(tail,0,M,mOff+full,n-full);
+        long bits = 0;
+        for(int j=tail.length-8; j<tail.length; j++) bits = bits<<8 | (0xFF&tail[j]);
+        return bits==8L*n;
+    }
+
+    // container bytes in memory or in a file
+    private static final class Source {
+        private final byte[] C;
+        private final FileChannel ch;
+
+        Source(byte[] C, FileChannel ch) {
+            this.C  = C;
+            this.ch = ch;
+        }
+
+        long size() throws IOException {
+            return C!=null ? C.length : ch.size();
+        }
+
+        byte[] read(long pos, int len) throws IOException {
+            byte[] b = new byte[len];
+            if(C!=null) System.arraycopy(C,(int)pos,b,0,len);
+            else {
+                ByteBuffer buf = ByteBuffer.wrap(b);
+                for(long p=pos; buf.hasRemaining(); ) {
+                    int r = ch.read(buf,p);
+                    if(r<0) throw new IOException("unexpected end of file");
+                    p+=r;
+                }
+            }
+            return b;
+        }
+    }
+
+    // runs task(i) for every chunk i in [from,to)
+    static final class ParallelChunks extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+        private final IntConsumer task;
+
+        ParallelChunks(int from, int to, IntConsumer task) {
+            this.from = from; this.to = to; this.task = task;
+        }
+
+        @Override
+        protected void compute() {
+            if(to-from<=1) {
+                if(to>from) task.accept(from);
+            } else {
+                int mid = (from+to)>>>1;
+                invokeAll(new ParallelChunks(from,mid,task),new ParallelChunks(mid,to,task));
+            }
+        }
+    }
+} // END_CLASS
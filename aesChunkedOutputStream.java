@@ -0,0 +1,147 @@
+// aesChunkedOutputStream.java
+// Streaming version of aesChunked.xifrarAES
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+// Writes the aesChunked layout. Every full chunk of data is ciphered by a
+// task of the pool while the next one is being written, and ciphered
+// chunks are written in order as soon as they are ready. At most
+// 2*parallelism chunks wait in memory; write() blocks for the oldest one
+// when there are more. The index and the footer are written by finish()
+// or close().
+public class aesChunkedOutputStream extends FilterOutputStream {
+
+    private final aesKey key;
+    private final aesEngine engine;
+    private final int chunkSize;
+    private final ForkJoinPool pool;
+    private final int maxPending;
+    // chunks being ciphered, oldest first
+    private final ArrayDeque<ForkJoinTask<byte[]>> pending = new ArrayDeque<ForkJoinTask<byte[]>>();
+    // plaintext of the current chunk
+    private byte[] buf;
+    private int n;
+    // end offsets of the chunks written, message bytes and bytes written
+    private long[] end = new long[16];
+    private int chunks;
+    private long count, written;
+    private boolean finished, closed;
+
+    public aesChunkedOutputStream(OutputStream out, aesKey key) {
+        this(out,key,aesChunked.DEFAULT_CHUNK,ForkJoinPool.commonPool());
+    }
+
+    public aesChunkedOutputStream(OutputStream out, aesKey key, int chunkSize, ForkJoinPool pool) {
+        super(out);
+        aesChunked.checkChunkSize(chunkSize);
+        this.key        = key;
+        this.engine     = aesEngines.getDefault();
+        this.chunkSize  = chunkSize;
+        this.pool       = pool;
+        this.maxPending = 2*pool.getParallelism();
+        this.buf        = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if(n==chunkSize) submit();
+        buf[n++] = (byte)b;
+        count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if((off|len|(off+len)|(b.length-off-len))<0) throw new IndexOutOfBoundsException();
+        while(len>0) {
+            if(n==chunkSize) submit();
+            int k = Math.min(len,chunkSize-n);
+            System.arraycopy(b,off,buf,n,k);
+            n+=k; off+=k; len-=k; count+=k;
+        }
+    }
+
+    // waits for the chunks being ciphered and writes them, the current
+    // chunk stays buffered until it is full
+    @Override
+    public void flush() throws IOException {
+        while(!pending.isEmpty()) emit();
+        out.flush();
+    }
+
+    // ciphers the last chunk and writes the index and the footer without
+    // closing the underlying stream
+    public void finish() throws IOException {
+        if(finished) return;
+        if(n>0) submit();
+        while(!pending.isEmpty()) emit();
+        if(written==0) header();
+        ByteBuffer b = ByteBuffer.allocate(8*chunks+aesChunked.FOOTER);
+        aesChunked.writeIndex(b,end,chunks,count);
+        out.write(b.array());
+        buf = null;
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        try {
+            finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // hands the current chunk to the pool and writes the chunks done
+    private void submit() throws IOException {
+        byte[] M = buf;
+        int len  = n;
+        pending.add(pool.submit(() -> {
+            byte[] C = new byte[aesChunked.chunkLength(len)];
+            aesChunked.encryptChunk(M,0,len,C,0,key,engine);
+            return C;
+        }));
+        buf = new byte[chunkSize];
+        n = 0;
+        while(!pending.isEmpty() && (pending.size()>maxPending || pending.peek().isDone())) emit();
+    }
+
+    // writes the oldest chunk, waiting for it if needed
+    private void emit() throws IOException {
+        byte[] C = pending.poll().join();
+        if(written==0) header();
+        out.write(C);
+        written+=C.length;
+        if(chunks==end.length) end = Arrays.copyOf(end,2*chunks);
+        end[chunks++] = written;
+    }
+
+    private void header() throws IOException {
+        ByteBuffer b = ByteBuffer.allocate(aesChunked.HEADER);
+        aesChunked.writeHeader(b,chunkSize);
+        out.write(b.array());
+        written = aesChunked.HEADER;
+    }
+
+    private void ensureOpen() throws IOException {
+        if(finished) throw new IOException("stream finished");
+    }
+} // END_CLASS
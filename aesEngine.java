@@ -0,0 +1,157 @@
+// aesEngine.java
+// Block cipher engine: ciphers a single 16 bytes block with a prepared key.
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.Arrays;
+
+// All engines produce exactly the same output, they only differ in speed.
+// in and out blocks can overlap completely (in place operation).
+// The modes call the blocks through this interface, see aesEngines for
+// the engine used by default.
+public interface aesEngine {
+
+    void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff);
+
+    void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff);
+
+    // count consecutive blocks (ECB). Engines that cipher several blocks
+    // at once override these; modes with independent blocks (CTR keystream,
+    // CBC decryption) call them with as many blocks as they can.
+    default void encryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        for(int i=0; i<count; i++, inOff+=16, outOff+=16) encryptBlock(key,in,inOff,out,outOff);
+    }
+
+    default void decryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        for(int i=0; i<count; i++, inOff+=16, outOff+=16) decryptBlock(key,in,inOff,out,outOff);
+    }
+
+    // count consecutive blocks between heap, direct or mapped buffers at
+    // absolute offsets (positions are not changed). Heap buffers go to the
+    // array versions, the others through a small array (direct memory is
+    // not copied to an array of the data size).
+    default void encryptBlocks(aesKey key, ByteBuffer in, int inOff, ByteBuffer out, int outOff, int count) {
+        blocks(this,true,key,in,inOff,out,outOff,count);
+    }
+
+    default void decryptBlocks(aesKey key, ByteBuffer in, int inOff, ByteBuffer out, int outOff, int count) {
+        blocks(this,false,key,in,inOff,out,outOff,count);
+    }
+
+    // reference engine: rijndael/invRijndael over byte[4][4] states
+    aesEngine REFERENCE = new aesEngine() {
+        public void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+            key.check();
+            aes.copy_block(aes.rijndael(aes.get_block(in,inOff),key.W,key.Nk,key.Nr),out,outOff);
+        }
+        public void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+            aes.copy_block(aes.invRijndael(aes.get_block(in,inOff),key.invW(),key.Nk,key.Nr),out,outOff);
+        }
+        public String toString() { return "reference"; }
+    };
+
+    // T-table engine: rijndael/invRijndael over four int columns,
+    // allocation free (see aesKey.encryptBlock)
+    aesEngine TTABLE = new aesEngine() {
+        public void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+            key.encryptBlock(in,inOff,out,outOff);
+        }
+        public void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+            key.decryptBlock(in,inOff,out,outOff);
+        }
+        public void encryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+            key.encryptBlocks(in,inOff,out,outOff,count);
+        }
+        public void decryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+            key.decryptBlocks(in,inOff,out,outOff,count);
+        }
+        // through a single 16 bytes block (see aes.blocks)
+        public void encryptBlocks(aesKey key, ByteBuffer in, int inOff, ByteBuffer out, int outOff, int count) {
+            key.encryptBlocks(in,inOff,out,outOff,count);
+        }
+        public void decryptBlocks(aesKey key, ByteBuffer in, int inOff, ByteBuffer out, int outOff, int count) {
+            key.decryptBlocks(in,inOff,out,outOff,count);
+        }
+        public String toString() { return "t-table"; }
+    };
+
+    // T-table engine running groups of 4 blocks through each round together
+    // (aes.rijndael4), single blocks as TTABLE
+    aesEngine INTERLEAVED = new aesEngine() {
+        public void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+            key.encryptBlock(in,inOff,out,outOff);
+        }
+        public void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+            key.decryptBlock(in,inOff,out,outOff);
+        }
+        public void encryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+            key.check();
+            int i = 0;
+            for(; i+4<=count; i+=4, inOff+=64, outOff+=64) aes.rijndael4(in,inOff,out,outOff,key.rk,key.Nr);
+            key.encryptBlocks(in,inOff,out,outOff,count-i);
+        }
+        public void decryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+            int[] InvRk = key.invRk();
+            int i = 0;
+            for(; i+4<=count; i+=4, inOff+=64, outOff+=64) aes.invRijndael4(in,inOff,out,outOff,InvRk,key.Nr);
+            key.decryptBlocks(in,inOff,out,outOff,count-i);
+        }
+        public String toString() { return "t-table-x4"; }
+    };
+
+    // bitsliced engine: 64 blocks at once, constant time, only for bulk
+    // work (see aesBitslice)
+    aesEngine BITSLICED = new aesBitslice();
+
+    // JDK provider (javax.crypto AES/ECB/NoPadding), AES-NI when available
+    aesEngine JCE = new aesJCE();
+
+    // Vector API engine (vector/aesVector.java) when it was compiled and
+    // jdk.incubator.vector is present, TTABLE otherwise
+    aesEngine VECTOR = load("aesVector",TTABLE);
+
+    // instance of class cls if it can be loaded and agrees with fallback
+    // byte for byte, fallback otherwise
+    private static aesEngine load(String cls, aesEngine fallback) {
+        try {
+            aesEngine e = (aesEngine)Class.forName(cls).getDeclaredConstructor().newInstance();
+            byte[] k = new byte[32], in = new byte[16*37], out = new byte[in.length], exp = new byte[in.length];
+            for(int i=0; i<in.length; i++) in[i] = (byte)(31*i+7);
+            for(int Lk=128; Lk<=256; Lk+=64) {
+                aesKey key = new aesKey(Arrays.copyOf(k,Lk/8));
+                fallback.encryptBlocks(key,in,0,exp,0,37);
+                e.encryptBlocks(key,in,0,out,0,37);
+                if(!Arrays.equals(out,exp)) return fallback;
+                e.decryptBlocks(key,out,0,out,0,37);
+                if(!Arrays.equals(out,in)) return fallback;
+            }
+            return e;
+        } catch(ReflectiveOperationException | LinkageError | RuntimeException e) {
+            return fallback;
+        }
+    }
+
+    // buffer version of encryptBlocks/decryptBlocks for engine e
+    private static void blocks(aesEngine e, boolean encrypt, aesKey key, ByteBuffer in, int inOff, ByteBuffer out, int outOff, int count) {
+        if(out.isReadOnly()) throw new ReadOnlyBufferException();
+        if(in.hasArray() && out.hasArray()) {
+            if(encrypt) e.encryptBlocks(key,in.array(),in.arrayOffset()+inOff,out.array(),out.arrayOffset()+outOff,count);
+            else        e.decryptBlocks(key,in.array(),in.arrayOffset()+inOff,out.array(),out.arrayOffset()+outOff,count);
+            return;
+        }
+        // 512 blocks at most per pass
+        byte[] buf = new byte[16*Math.min(count,512)];
+        for(int i=0; i<count; ) {
+            int k = Math.min(count-i,512);
+            in.get(inOff+16*i,buf,0,16*k);
+            if(encrypt) e.encryptBlocks(key,buf,0,buf,0,k);
+            else        e.decryptBlocks(key,buf,0,buf,0,k);
+            out.put(outOff+16*i,buf,0,16*k);
+            i+=k;
+        }
+    }
+}
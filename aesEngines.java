@@ -0,0 +1,199 @@
+// aesEngines.java
+// Available block engines and the engine used by default
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+// The modes (xifrarAES, desxifrarAES, aesCTR, aesGCM, the CBC streams)
+// use getDefault() when no engine is given. It is chosen once with the
+// system property aes.engine:
+//   -Daes.engine=t-table    (default) or any name of available()
+//   -Daes.engine=auto       micro-calibration on this host
+// With auto, a background thread started with the class times every
+// engine for single blocks (CBC encryption) and for groups of blocks
+// (CTR, CBC decryption), for each key length, and keeps the fastest of
+// each. Until it is done (about a second) the T-table engine is used, so
+// no request waits for the calibration. All engines give the same output,
+// the choice only changes the speed.
+public final class aesEngines {
+
+    // blocks per timed call, turns and time of each measure (ns)
+    private static final int  BLOCKS  = 256;
+    private static final int  ROUNDS  = 4;
+    private static final long MEASURE = 10_000_000L;
+
+    private static final List<aesEngine> AVAILABLE;
+    private static final aesEngine DEFAULT;
+
+    static {
+        List<aesEngine> l = new ArrayList<aesEngine>();
+        l.add(aesEngine.REFERENCE);
+        l.add(aesEngine.TTABLE);
+        l.add(aesEngine.INTERLEAVED);
+        l.add(aesEngine.BITSLICED);
+        // VECTOR is TTABLE when the vector engine is not present
+        if(aesEngine.VECTOR!=aesEngine.TTABLE) l.add(aesEngine.VECTOR);
+        l.add(aesEngine.JCE);
+        AVAILABLE = Collections.unmodifiableList(l);
+        String name = System.getProperty("aes.engine","t-table");
+        DEFAULT = name.equals("auto") ? Auto.start() : byName(name);
+    }
+
+    private aesEngines() {
+    }
+
+    // engine used when none is given
+    public static aesEngine getDefault() {
+        return DEFAULT;
+    }
+
+    // all the engines that can run on this JVM
+    public static List<aesEngine> available() {
+        return AVAILABLE;
+    }
+
+    // engine named name (its toString, "vector" matches "vector-512")
+    public static aesEngine byName(String name) {
+        for(aesEngine e : AVAILABLE)
+            if(e.toString().equals(name) || e.toString().startsWith(name+"-")) return e;
+        throw new IllegalArgumentException("unknown AES engine: "+ name +", available: "+ AVAILABLE);
+    }
+
+    // engine that calibrates in the background, TTABLE until it is done
+    public static aesEngine auto() {
+        return Auto.start();
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // single blocks go to single[i], groups of blocks to bulk[i], with
+    // i = 0, 1, 2 for 128, 192 and 256 bits keys
+    private static final class Auto implements aesEngine {
+
+        // engines chosen, published at once when the calibration ends
+        private static final class Choice {
+            final aesEngine[] single, bulk;
+            final boolean calibrated;
+
+            Choice(aesEngine[] single, aesEngine[] bulk, boolean calibrated) {
+                this.single     = single;
+                this.bulk       = bulk;
+                this.calibrated = calibrated;
+            }
+        }
+
+        private volatile Choice choice;
+
+        private Auto() {
+            aesEngine[] t = { aesEngine.TTABLE, aesEngine.TTABLE, aesEngine.TTABLE };
+            choice = new Choice(t,t,false);
+        }
+
+        // new engine and its calibration thread (daemon, it does not keep
+        // the JVM alive)
+        static Auto start() {
+            Auto a = new Auto();
+            Thread t = new Thread(a::calibrate,"aes-engine-calibration");
+            t.setDaemon(true);
+            t.start();
+            return a;
+        }
+
+        public void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+            single(key).encryptBlock(key,in,inOff,out,outOff);
+        }
+
+        public void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+            single(key).decryptBlock(key,in,inOff,out,outOff);
+        }
+
+        public void encryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+            bulk(key).encryptBlocks(key,in,inOff,out,outOff,count);
+        }
+
+        public void decryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+            bulk(key).decryptBlocks(key,in,inOff,out,outOff,count);
+        }
+
+        public void encryptBlocks(aesKey key, ByteBuffer in, int inOff, ByteBuffer out, int outOff, int count) {
+            bulk(key).encryptBlocks(key,in,inOff,out,outOff,count);
+        }
+
+        public void decryptBlocks(aesKey key, ByteBuffer in, int inOff, ByteBuffer out, int outOff, int count) {
+            bulk(key).decryptBlocks(key,in,inOff,out,outOff,count);
+        }
+
+        private aesEngine single(aesKey key) {
+            return choice.single[key.Lk/64-2];
+        }
+
+        private aesEngine bulk(aesKey key) {
+            return choice.bulk[key.Lk/64-2];
+        }
+
+        // times the engines with throwaway keys of each length
+        private void calibrate() {
+            List<aesEngine> l = new ArrayList<aesEngine>(AVAILABLE);
+            l.remove(aesEngine.REFERENCE);
+            aesEngine[] single = new aesEngine[3], bulk = new aesEngine[3];
+            try {
+                for(int i=0; i<3; i++) {
+                    aesKey k = new aesKey(new byte[16+8*i]);
+                    // engines are timed in turns and keep their best time,
+                    // so the first turns are the warm up (JIT) of all of them
+                    double[] s = new double[l.size()], b = new double[l.size()];
+                    for(int r=0; r<ROUNDS; r++)
+                        for(int e=0; e<l.size(); e++) {
+                            s[e] = Math.max(s[e],speed(l.get(e),k,false));
+                            b[e] = Math.max(b[e],speed(l.get(e),k,true));
+                        }
+                    int sBest = 0, bBest = 0;
+                    for(int e=1; e<l.size(); e++) {
+                        if(s[e]>s[sBest]) sBest = e;
+                        if(b[e]>b[bBest]) bBest = e;
+                    }
+                    single[i] = l.get(sBest);
+                    bulk[i]   = l.get(bBest);
+                }
+            } catch(RuntimeException | LinkageError e) {
+                // an engine failed: keep the T-table engine
+                return;
+            }
+            choice = new Choice(single,bulk,true);
+        }
+
+        public String toString() {
+            Choice c = choice;
+            if(!c.calibrated) return "auto (calibrating)";
+            StringBuilder sb = new StringBuilder("auto");
+            for(int i=0; i<3; i++)
+                sb.append(' ').append(64*i+128).append(":").append(c.single[i]).append('/').append(c.bulk[i]);
+            return sb.toString();
+        }
+    }
+
+    // blocks per ns of e during MEASURE ns
+    private static double speed(aesEngine e, aesKey key, boolean bulk) {
+        byte[] buf = new byte[16*BLOCKS];
+        long blocks = 0, start = System.nanoTime(), t;
+        do {
+            if(bulk) {
+                e.encryptBlocks(key,buf,0,buf,0,BLOCKS);
+                e.decryptBlocks(key,buf,0,buf,0,BLOCKS);
+            } else {
+                for(int i=0; i<16*BLOCKS; i+=16) e.encryptBlock(key,buf,i,buf,i);
+                for(int i=0; i<16*BLOCKS; i+=16) e.decryptBlock(key,buf,i,buf,i);
+            }
+            blocks+=2*BLOCKS;
+        } while((t=System.nanoTime()-start)<MEASURE);
+        return blocks/(double)t;
+    }
+} // END_CLASS
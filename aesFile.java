@@ -0,0 +1,149 @@
+// aesFile.java
+// File encryption with memory mapped I/O
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Ciphers files with the xifrarAES layout (IV block, data, padding and
+// length trailer). Source and destination are mapped in windows and
+// ciphered BUFFER bytes at a time through arrays allocated once per file,
+// so the heap used does not depend on the file size.
+//
+// Usage: java aesFile (-e|-d) <hex key> <input file> <output file>
+public class aesFile {
+
+    // mapped window size (multiple of the block size)
+    private static final int WINDOW = 64<<20;
+    // bytes ciphered at a time (multiple of the block size)
+    private static final int BUFFER = 64<<10;
+
+    public static void main(String args[]) throws IOException {
+        if(args.length!=4 || !(args[0].equals("-e") || args[0].equals("-d"))) {
+            System.err.println("Usage: java aesFile (-e|-d) <hex key> <input file> <output file>");
+            System.exit(1);
+        }
+        aesKey key = new aesKey(parseHex(args[1]));
+        if(args[0].equals("-e")) xifrarAES(Paths.get(args[2]),Paths.get(args[3]),key);
+        else                     desxifrarAES(Paths.get(args[2]),Paths.get(args[3]),key);
+    }
+
+    // ciphers file src into file dst
+    public static void xifrarAES(Path src, Path dst, aesKey key) throws IOException {
+        try(FileChannel in  = FileChannel.open(src,StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(dst,StandardOpenOption.READ,StandardOpenOption.WRITE,
+                                               StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING)) {
+            long n    = in.size();
+            long full = n-n%16;
+            // first block of data is IV
+            byte[] prev = new byte[16];
+            aes.randomIV(prev,0);
+            out.write(ByteBuffer.wrap(prev),0);
+            // cipher whole blocks window by window
+            byte[] buf = new byte[BUFFER];
+            for(long off=0; off<full; off+=WINDOW) {
+                int len = (int)Math.min(WINDOW,full-off);
+                MappedByteBuffer M = in.map(FileChannel.MapMode.READ_ONLY,off,len);
+                MappedByteBuffer C = out.map(FileChannel.MapMode.READ_WRITE,off+16,len);
+                for(int i=0; i<len; i+=BUFFER) {
+                    int k = Math.min(BUFFER,len-i);
+                    M.get(i,buf,0,k);
+                    cbc(key,buf,k,prev);
+                    C.put(i,buf,0,k);
+                }
+            }
+            // last partial block, 0x80 and 0x00 padding and length trailer
+            // (see aes.IVpadMessage)
+            ByteBuffer last = ByteBuffer.allocate((int)(n-full)<8 ? 16 : 32);
+            last.limit((int)(n-full));
+            readFully(in,last,full);
+            last.limit(last.capacity());
+            last.put((byte)0x80);
+            last.putLong(last.capacity()-8,8*n);
+            cbc(key,last.array(),last.capacity(),prev);
+            last.clear();
+            while(last.hasRemaining()) out.write(last,16+full+last.position());
+        }
+    }
+
+    // deciphers file src (written by xifrarAES) into file dst
+    public static void desxifrarAES(Path src, Path dst, aesKey key) throws IOException {
+        try(FileChannel in  = FileChannel.open(src,StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(dst,StandardOpenOption.READ,StandardOpenOption.WRITE,
+                                               StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING)) {
+            long m = in.size();
+            if(m<32 || m%16!=0) throw new IOException("truncated ciphertext");
+            // decipher the last block first to get the message length
+            ByteBuffer last = ByteBuffer.allocate(32);
+            readFully(in,last,m-32);
+            key.decryptBlock(last,16,last,16);
+            long size = (last.getLong(24)^last.getLong(8))/8;
+            // WARNING!!: it can fail if key is not correct, and data size are random bits,
+            if(size<0 || size>m-16-9 || size<m-16-32) throw new IOException("wrong key or corrupted ciphertext");
+            // decipher whole blocks of the message window by window, c holds
+            // the previous ciphertext block too (the IV for the first one)
+            long full = size-size%16;
+            byte[] c = new byte[BUFFER+16], p = new byte[BUFFER];
+            for(long off=0; off<full; off+=WINDOW) {
+                int len = (int)Math.min(WINDOW,full-off);
+                MappedByteBuffer C = in.map(FileChannel.MapMode.READ_ONLY,off,len+16);
+                MappedByteBuffer M = out.map(FileChannel.MapMode.READ_WRITE,off,len);
+                for(int i=0; i<len; i+=BUFFER) {
+                    int k = Math.min(BUFFER,len-i);
+                    C.get(i,c,0,k+16);
+                    key.decryptBlocks(c,16,p,0,k/16);
+                    for(int j=0; j<k; j++) p[j]^=c[j];
+                    M.put(i,p,0,k);
+                }
+            }
+            // last partial block
+            if(size>full) {
+                ByteBuffer tail = ByteBuffer.allocate(32);
+                readFully(in,tail,full);
+                key.decryptBlock(tail,16,tail,16);
+                for(int j=0; j<16; j+=4) tail.putInt(16+j,tail.getInt(16+j)^tail.getInt(j));
+                tail.position(16).limit(16+(int)(size-full));
+                while(tail.hasRemaining()) out.write(tail,full+tail.position()-16);
+            }
+        }
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // CBC encryption of the first len bytes of b in place, prev is the
+    // previous ciphertext block and ends as the last one
+    private static void cbc(aesKey key, byte[] b, int len, byte[] prev) {
+        for(int i=0; i<len; i+=16) {
+            for(int j=0; j<16; j++) b[i+j]^=prev[j];
+            key.encryptBlock(b,i,b,i);
+            System.arraycopy(b,i,prev,0,16);
+        }
+    }
+
+    // reads b.remaining() bytes from position pos of ch
+    private static void readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        for(long p=pos; b.hasRemaining(); ) {
+            int r = ch.read(b,p);
+            if(r<0) throw new IOException("unexpected end of file");
+            p+=r;
+        }
+    }
+
+    private static byte[] parseHex(String s) {
+        if(s.length()%2!=0) throw new IllegalArgumentException("invalid hex key: "+s);
+        byte[] b = new byte[s.length()/2];
+        for(int i=0; i<b.length; i++)
+            b[i] = (byte)Integer.parseInt(s.substring(2*i,2*i+2),16);
+        return b;
+    }
+} // END_CLASS
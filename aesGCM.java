@@ -0,0 +1,425 @@
+// aesGCM.java
+// Galois/Counter Mode (GCM): authenticated encryption
+// http://csrc.nist.gov/publications/nistpubs/800-38D/SP-800-38D.pdf
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import javax.crypto.AEADBadTagException;
+
+// Data is ciphered with a CTR keystream and the ciphertext is authenticated
+// in the same pass with GHASH, a polynomial evaluation in GF(2^128) at the
+// hash key H=E(0). Multiplications by H use the 4 bits tables of Shoup
+// (16 multiples of H per key) instead of a bit by bit product.
+// 128 bits values are two big endian longs (hi, lo) with GCM bit order:
+// the most significant bit of hi is the coefficient of x^0.
+public final class aesGCM {
+
+    // tag length in bytes
+    public static final int TAG = 16;
+    // longest text of a message (SP 800-38D: 2^39-256 bits), 2^32-2
+    // blocks: the 32 bits counter of the keystream never repeats
+    public static final long MAX_TEXT = (1L<<36)-32;
+    // blocks of data handled by a single parallel task
+    private static final int PARALLEL_CHUNK = 4096;
+    // GCM polynomial x^128+x^7+x^2+x+1 (reflected)
+    private static final long R = 0xE100000000000000L;
+
+    // reduction of the 4 bits shifted out when multiplying by x^4
+    private static final long[] rem = new long[16];
+
+    static {
+        for(int r=0; r<16; r++) {
+            long hi = 0, lo = r;
+            for(int i=0; i<4; i++) {
+                boolean lsb = (lo&1)!=0;
+                lo = lo>>>1 | hi<<63;
+                hi = hi>>>1;
+                if(lsb) hi ^= R;
+            }
+            rem[r] = hi;
+        }
+    }
+
+    private final aesKey key;
+    private final aesEngine engine;
+    // Shoup table: T[i] = H*i for every 4 bits value i
+    private final long[] tHi = new long[16], tLo = new long[16];
+    // H^PARALLEL_CHUNK, to join chunks hashed in parallel
+    private final long[] hChunk;
+
+    public aesGCM(aesKey key) {
+        this(key,aesEngines.getDefault());
+    }
+
+    public aesGCM(aesKey key, aesEngine engine) {
+        this.key    = key;
+        this.engine = engine;
+        // hash key H = E(0^128)
+        byte[] H = new byte[16];
+        engine.encryptBlock(key,H,0,H,0);
+        tHi[8] = getLong(H,0);
+        tLo[8] = getLong(H,8);
+        // T[4] = H*x, T[2] = H*x^2, T[1] = H*x^3
+        for(int i=4; i>0; i>>=1) {
+            tHi[i] = tHi[2*i]>>>1 ^ ((tLo[2*i]&1)!=0 ? R : 0);
+            tLo[i] = tLo[2*i]>>>1 | tHi[2*i]<<63;
+        }
+        // T[i^j] = T[i]^T[j]
+        for(int i=2; i<16; i<<=1)
+            for(int j=1; j<i; j++) {
+                tHi[i+j] = tHi[i]^tHi[j];
+                tLo[i+j] = tLo[i]^tLo[j];
+            }
+        hChunk = power(PARALLEL_CHUNK);
+        Arrays.fill(H,(byte)0);
+    }
+
+    // ciphers M with AAD as additional authenticated data (can be null):
+    // result is the ciphertext followed by the 16 bytes tag
+    public byte[] xifrar(byte[] IV, byte[] AAD, byte[] M) {
+        byte[] C = new byte[M.length+TAG];
+        Session s = encryptor(IV);
+        if(AAD!=null) s.updateAAD(AAD,0,AAD.length);
+        s.update(M,0,M.length,C,0);
+        s.finish(C,M.length);
+        return C;
+    }
+
+    // deciphers and checks a result of xifrar
+    public byte[] desxifrar(byte[] IV, byte[] AAD, byte[] C) throws AEADBadTagException {
+        if(C.length<TAG) throw new AEADBadTagException("ciphertext shorter than the tag");
+        int n = C.length-TAG;
+        byte[] M = new byte[n];
+        Session s = decryptor(IV);
+        if(AAD!=null) s.updateAAD(AAD,0,AAD.length);
+        s.update(C,0,n,M,0);
+        try {
+            s.verify(C,n);
+        } catch(AEADBadTagException e) {
+            Arrays.fill(M,(byte)0);
+            throw e;
+        }
+        return M;
+    }
+
+    // ciphers M with a random 12 bytes IV: result is IV, ciphertext and tag
+    public static byte[] xifrarGCM(byte[] M, aesKey key) {
+        byte[] IV = new byte[12];
+        aesIV.SECURE.nextIV(IV,0,12);
+        byte[] C = new aesGCM(key).xifrar(IV,null,M);
+        byte[] res = new byte[12+C.length];
+        System.arraycopy(IV,0,res,0,12);
+        System.arraycopy(C,0,res,12,C.length);
+        return res;
+    }
+
+    public static byte[] desxifrarGCM(byte[] C, aesKey key) throws AEADBadTagException {
+        if(C.length<12+TAG) throw new AEADBadTagException("ciphertext too short");
+        return new aesGCM(key).desxifrar(Arrays.copyOf(C,12),null,Arrays.copyOfRange(C,12,C.length));
+    }
+
+    // incremental encryption / decryption with IV
+    public Session encryptor(byte[] IV) {
+        return new Session(IV,true);
+    }
+
+    public Session decryptor(byte[] IV) {
+        return new Session(IV,false);
+    }
+
+    // One message: AAD first (updateAAD), then data (update, MAX_TEXT bytes
+    // at most in total) and finally finish (encryption) or verify
+    // (decryption). Not thread safe.
+    // WARNING!!: deciphered data must not be used before verify succeeds.
+    public final class Session {
+        private final boolean encrypt;
+        // pre-counter block J0 and E(J0)
+        private final byte[] J0 = new byte[16], EJ0 = new byte[16];
+        // GHASH accumulator
+        private final long[] Y = new long[2];
+        // keystream: E(J0 + 1 + block) with a 32 bits counter
+        private final aesCTR ctr;
+        // current keystream block and bytes of the current block: for AAD
+        // partial holds the data, for text the ciphertext
+        private final byte[] ks = new byte[16], partial = new byte[16];
+        private int partLen;
+        // next data block number
+        private long block;
+        private long aadLen, textLen;
+        private boolean text, finished;
+
+        private Session(byte[] IV, boolean encrypt) {
+            if(IV.length==0) throw new IllegalArgumentException("empty IV");
+            this.encrypt = encrypt;
+            if(IV.length==12) {
+                // J0 = IV || 0^31 || 1
+                System.arraycopy(IV,0,J0,0,12);
+                J0[15] = 1;
+            } else {
+                // J0 = GHASH(IV || 0^s || [0]64 || [len(IV)]64)
+                ghash(Y,IV,0,IV.length);
+                Y[1] ^= 8L*IV.length;
+                mulH(Y);
+                putLong(J0,0,Y[0]);
+                putLong(J0,8,Y[1]);
+                Y[0] = Y[1] = 0;
+            }
+            engine.encryptBlock(key,J0,0,EJ0,0);
+            byte[] ctr0 = J0.clone();
+            int c = getInt(J0,12)+1;
+            ctr0[12] = (byte)(c>>>24); ctr0[13] = (byte)(c>>>16); ctr0[14] = (byte)(c>>>8); ctr0[15] = (byte)c;
+            ctr = new aesCTR(key,ctr0,engine,true);
+        }
+
+        public void updateAAD(byte[] a, int off, int len) {
+            if(text || finished) throw new IllegalStateException("AAD must be given before the data");
+            aadLen+=len;
+            while(len>0) {
+                int k = Math.min(len,16-partLen);
+                System.arraycopy(a,off,partial,partLen,k);
+                partLen+=k; off+=k; len-=k;
+                if(partLen==16) {
+                    ghash(Y,partial,0,16);
+                    partLen = 0;
+                }
+            }
+        }
+
+        // ciphers (or deciphers) len bytes of in into out, in and out can
+        // be the same array
+        public void update(byte[] in, int inOff, int len, byte[] out, int outOff) {
+            update(in,inOff,len,out,outOff,ForkJoinPool.commonPool(),aes.PARALLEL_THRESHOLD);
+        }
+
+        // same as above, data of threshold bytes or more is split in chunks
+        // processed by pool
+        public void update(byte[] in, int inOff, int len, byte[] out, int outOff,
+                           ForkJoinPool pool, int threshold) {
+            if(finished) throw new IllegalStateException("session finished");
+            // nothing is ciphered past the limit
+            if(len>MAX_TEXT-textLen)
+                throw new IllegalArgumentException("GCM message longer than "+ MAX_TEXT +" bytes");
+            if(!text) {
+                // pad AAD with zeroes
+                if(partLen>0) padBlock();
+                text = true;
+            }
+            textLen+=len;
+            // complete the current block
+            while(partLen>0 && len>0) {
+                update(in[inOff++],out,outOff++);
+                len--;
+            }
+            // whole blocks
+            int full = len-len%16;
+            if(full>0) {
+                if(full<threshold) {
+                    blocks(in,inOff,out,outOff,full,block,Y);
+                } else {
+                    long[][] G = new long[(full/16+PARALLEL_CHUNK-1)/PARALLEL_CHUNK][2];
+                    pool.invoke(new ParallelGCM(this,in,inOff,out,outOff,0,G.length,full,G));
+                    // Y = Y*H^m ^ G[c] for every chunk of m blocks
+                    for(int c=0; c<G.length; c++) {
+                        int m = Math.min(PARALLEL_CHUNK,full/16-c*PARALLEL_CHUNK);
+                        multiply(Y,m==PARALLEL_CHUNK ? hChunk : power(m));
+                        Y[0] ^= G[c][0];
+                        Y[1] ^= G[c][1];
+                    }
+                }
+                block+=full/16;
+                inOff+=full; outOff+=full; len-=full;
+            }
+            // start a new partial block
+            for(; len>0; len--) update(in[inOff++],out,outOff++);
+        }
+
+        // writes the tag at tag[off]
+        public void finish(byte[] tag, int off) {
+            if(!encrypt) throw new IllegalStateException("decryption session, use verify");
+            computeTag(tag,off);
+        }
+
+        // checks the tag at tag[off]
+        public void verify(byte[] tag, int off) throws AEADBadTagException {
+            if(encrypt) throw new IllegalStateException("encryption session, use finish");
+            byte[] T = new byte[TAG];
+            computeTag(T,0);
+            // constant time comparison
+            if(!MessageDigest.isEqual(T,Arrays.copyOfRange(tag,off,off+TAG)))
+                throw new AEADBadTagException("tag mismatch");
+        }
+
+        private void computeTag(byte[] tag, int off) {
+            if(finished) throw new IllegalStateException("session finished");
+            finished = true;
+            if(partLen>0) padBlock();
+            // lengths block
+            Y[0] ^= 8*aadLen;
+            Y[1] ^= 8*textLen;
+            mulH(Y);
+            // tag = E(J0) ^ S
+            putLong(tag,off,Y[0]^getLong(EJ0,0));
+            putLong(tag,off+8,Y[1]^getLong(EJ0,8));
+        }
+
+        // one byte of a partial block
+        private void update(byte b, byte[] out, int outOff) {
+            if(partLen==0) ctr.keystream(block,ks,1);
+            byte c = (byte)(b^ks[partLen]);
+            partial[partLen++] = encrypt ? c : b;
+            out[outOff] = c;
+            if(partLen==16) {
+                ghash(Y,partial,0,16);
+                partLen = 0;
+                block++;
+            }
+        }
+
+        private void padBlock() {
+            Arrays.fill(partial,partLen,16,(byte)0);
+            ghash(Y,partial,0,16);
+            partLen = 0;
+            if(text) block++;
+        }
+
+        // ciphers len bytes (whole blocks) starting with data block first
+        // and accumulates their GHASH in G
+        void blocks(byte[] in, int inOff, byte[] out, int outOff, int len, long first, long[] G) {
+            // keystream of up to aesCTR.BATCH blocks ciphered with one
+            // engine call
+            byte[] k = new byte[16*Math.min(aesCTR.BATCH,len/16)];
+            for(int i=0; i<len; i+=k.length) {
+                int n = Math.min(k.length,len-i);
+                ctr.keystream(first+i/16,k,n/16);
+                // GHASH is computed over the ciphertext
+                if(!encrypt) ghash(G,in,inOff+i,n);
+                for(int j=0; j<n; j++) out[outOff+i+j] = (byte)(in[inOff+i+j]^k[j]);
+                if(encrypt) ghash(G,out,outOff+i,n);
+            }
+        }
+
+        // test hook: as if len bytes of text were already given (MAX_TEXT)
+        void skipText(long len) {
+            textLen+=len;
+        }
+
+        long block() {
+            return block;
+        }
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // Y = (Y ^ X)*H for every block of b (the last one padded with zeroes)
+    private void ghash(long[] Y, byte[] b, int off, int len) {
+        for(; len>=16; off+=16, len-=16) {
+            Y[0] ^= getLong(b,off);
+            Y[1] ^= getLong(b,off+8);
+            mulH(Y);
+        }
+        if(len>0) {
+            byte[] last = Arrays.copyOfRange(b,off,off+16);
+            Arrays.fill(last,len,16,(byte)0);
+            ghash(Y,last,0,16);
+        }
+    }
+
+    // Y = Y*H with the Shoup table: 4 bits at a time from the last byte,
+    // multiplying by x^4 (shift right) between them
+    private void mulH(long[] Y) {
+        long xHi = Y[0], xLo = Y[1];
+        long zHi = 0, zLo = 0;
+        for(int i=15; i>=0; i--) {
+            int b = (int)(i<8 ? xHi>>>(56-8*i) : xLo>>>(120-8*i))&0xFF;
+            // low 4 bits
+            int r = (int)zLo&0xF;
+            zLo = (zLo>>>4 | zHi<<60)^tLo[b&0xF];
+            zHi = (zHi>>>4)^rem[r]^tHi[b&0xF];
+            // high 4 bits
+            r = (int)zLo&0xF;
+            zLo = (zLo>>>4 | zHi<<60)^tLo[b>>>4];
+            zHi = (zHi>>>4)^rem[r]^tHi[b>>>4];
+        }
+        Y[0] = zHi;
+        Y[1] = zLo;
+    }
+
+    // H^n (n>0) by square and multiply
+    private long[] power(int n) {
+        long[] res = { 0x8000000000000000L, 0 };
+        long[] sq  = { tHi[8], tLo[8] };
+        for(; n>0; n>>=1) {
+            if((n&1)!=0) multiply(res,sq);
+            multiply(sq,sq);
+        }
+        return res;
+    }
+
+    // a = a*b bit by bit (only used for the powers of H)
+    private static void multiply(long[] a, long[] b) {
+        long zHi = 0, zLo = 0, vHi = b[0], vLo = b[1];
+        for(int i=0; i<128; i++) {
+            long bit = i<64 ? a[0]>>>(63-i) : a[1]>>>(127-i);
+            if((bit&1)!=0) {
+                zHi ^= vHi;
+                zLo ^= vLo;
+            }
+            // v = v*x
+            boolean lsb = (vLo&1)!=0;
+            vLo = vLo>>>1 | vHi<<63;
+            vHi = vHi>>>1 ^ (lsb ? R : 0);
+        }
+        a[0] = zHi;
+        a[1] = zLo;
+    }
+
+    private static long getLong(byte[] b, int i) {
+        long l = 0;
+        for(int j=0; j<8; j++) l = l<<8 | (0xFF&b[i+j]);
+        return l;
+    }
+
+    private static void putLong(byte[] b, int i, long l) {
+        for(int j=7; j>=0; j--, l>>>=8) b[i+j] = (byte)l;
+    }
+
+    private static int getInt(byte[] b, int i) {
+        return (0xFF&b[i])<<24 | (0xFF&b[i+1])<<16 | (0xFF&b[i+2])<<8 | (0xFF&b[i+3]);
+    }
+
+    // ciphers chunks [from,to) of PARALLEL_CHUNK blocks, GHASH of chunk c
+    // (starting from zero) is stored in G[c]
+    private static final class ParallelGCM extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final Session s;
+        private final byte[] in, out;
+        private final int inOff, outOff, from, to, len;
+        private final long[][] G;
+
+        ParallelGCM(Session s, byte[] in, int inOff, byte[] out, int outOff, int from, int to, int len, long[][] G) {
+            this.s = s; this.in = in; this.inOff = inOff; this.out = out; this.outOff = outOff;
+            this.from = from; this.to = to; this.len = len; this.G = G;
+        }
+
+        @Override
+        protected void compute() {
+            if(to-from==1) {
+                int off = from*16*PARALLEL_CHUNK;
+                int n   = Math.min(16*PARALLEL_CHUNK,len-off);
+                s.blocks(in,inOff+off,out,outOff+off,n,s.block()+off/16,G[from]);
+            } else {
+                int mid = (from+to)/2;
+                invokeAll(new ParallelGCM(s,in,inOff,out,outOff,from,mid,len,G),
+                          new ParallelGCM(s,in,inOff,out,outOff,mid,to,len,G));
+            }
+        }
+    }
+} // END_CLASS
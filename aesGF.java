@@ -0,0 +1,57 @@
+// aesGF.java
+// GF(2^8) multiply tables and MixColumns over packed columns
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+// Products by the constants of the mix column matrices (2, 3, 1, 1) and
+// (0E, 0B, 0D, 09) as tables, and MixColumns/InvMixColumns of a whole
+// column packed in an int (row 0 in the most significant byte, as in
+// aes.packKeys). The packed versions double the four bytes at once with a
+// branch free xtime, no table and no log/antilog lookups (see aes.prod).
+final class aesGF {
+
+    // x*2, x*3, x*9, x*0B, x*0D and x*0E (index x, unsigned)
+    static final byte[] MUL2 = table(0x02), MUL3 = table(0x03), MUL9 = table(0x09);
+    static final byte[] MULB = table(0x0B), MULD = table(0x0D), MULE = table(0x0E);
+
+    private aesGF() {
+    }
+
+    // 2*a of every byte of w: shift left and xor 0x1B where the high bit was set
+    static int xtime(int w) {
+        return ((w&0x7F7F7F7F)<<1)^(((w>>>7)&0x01010101)*0x1B);
+    }
+
+    // b_i = 2a_i ^ 3a_i+1 ^ a_i+2 ^ a_i+3 = xtime(a_i ^ a_i+1) ^ a_i+1 ^ a_i+2 ^ a_i+3,
+    // byte a_i+1 moves to row i rotating left 8 bits
+    static int mixColumn(int w) {
+        int r1 = Integer.rotateLeft(w,8);
+        return xtime(w^r1)^r1^Integer.rotateLeft(w,16)^Integer.rotateLeft(w,24);
+    }
+
+    // invMixColumn = mixColumn after a_i ^= 4(a_i ^ a_i+2): the inverse
+    // matrix is the forward one times (05 00 04 00)
+    static int invMixColumn(int w) {
+        return mixColumn(w^xtime(xtime(w^Integer.rotateLeft(w,16))));
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // c*x for every x, shift and add
+    private static byte[] table(int c) {
+        byte[] t = new byte[256];
+        for(int x=0; x<256; x++) {
+            int p = 0;
+            for(int a=x, b=c; b!=0; b>>=1) {
+                if((b&1)!=0) p ^= a;
+                a = (a<<1)^((a&0x80)!=0 ? 0x11B : 0);
+            }
+            t[x] = (byte)p;
+        }
+        return t;
+    }
+} // END_CLASS
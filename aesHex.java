@@ -0,0 +1,109 @@
+// aesHex.java
+// Table driven hexadecimal encoding of bytes
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+// Lower case hexadecimal, as String.format("%02x"), without parsing a
+// format for every byte: the two digits of each byte value are looked up
+// in a 512 byte table and written into a byte[] sized beforehand, which
+// becomes a Latin-1 String with a single copy. Used by the diagnostics of
+// aes (getMessage, stateToString, keyToString, getLogTables,
+// getSboxTables) and by aesTrace.
+public final class aesHex {
+
+    // DIGITS[2*b] and DIGITS[2*b+1]: the digits of byte b
+    private static final byte[] DIGITS = new byte[512];
+
+    static {
+        byte[] d = "0123456789abcdef".getBytes(StandardCharsets.ISO_8859_1);
+        for(int b=0; b<256; b++) {
+            DIGITS[2*b]   = d[b>>>4];
+            DIGITS[2*b+1] = d[b&0xF];
+        }
+    }
+
+    private aesHex() {
+    }
+
+    public static String toHex(byte[] b) {
+        return toHex(b,0,b.length);
+    }
+
+    public static String toHex(byte[] b, int off, int len) {
+        Objects.checkFromIndexSize(off,len,b.length);
+        byte[] out = new byte[size(len,2,0)];
+        encode(b,off,len,out,0);
+        return new String(out,StandardCharsets.ISO_8859_1);
+    }
+
+    // len bytes of b in lines of perLine bytes, every line preceded by a
+    // "\n" and every byte followed by a space when spaced (the format of
+    // aes.getMessage and aes.getLogTables)
+    public static String lines(byte[] b, int off, int len, int perLine, boolean spaced) {
+        Objects.checkFromIndexSize(off,len,b.length);
+        if(perLine<1) throw new IllegalArgumentException("bytes per line: "+ perLine);
+        byte[] out = new byte[size(len,spaced ? 3 : 2,(len+perLine-1)/perLine)];
+        int o = 0;
+        for(int i=0; i<len; ) {
+            out[o++] = '\n';
+            int end = Math.min(len,i+perLine);
+            if(spaced) {
+                for(; i<end; i++) {
+                    int d = 2*(0xFF&b[off+i]);
+                    out[o]   = DIGITS[d];
+                    out[o+1] = DIGITS[d+1];
+                    out[o+2] = ' ';
+                    o += 3;
+                }
+            } else {
+                o = encode(b,off+i,end-i,out,o);
+                i = end;
+            }
+        }
+        return new String(out,StandardCharsets.ISO_8859_1);
+    }
+
+    // writes the 2*len digits of b[off..off+len) into out from outOff,
+    // returns the offset after the last one
+    public static int encode(byte[] b, int off, int len, byte[] out, int outOff) {
+        Objects.checkFromIndexSize(off,len,b.length);
+        Objects.checkFromIndexSize(outOff,2*len,out.length);
+        for(int i=off; i<off+len; i++, outOff+=2) {
+            int d = 2*(0xFF&b[i]);
+            out[outOff]   = DIGITS[d];
+            out[outOff+1] = DIGITS[d+1];
+        }
+        return outOff;
+    }
+
+    public static StringBuilder append(StringBuilder sb, byte b) {
+        int d = 2*(0xFF&b);
+        return sb.append((char)DIGITS[d]).append((char)DIGITS[d+1]);
+    }
+
+    // every byte followed by a space when spaced
+    public static StringBuilder append(StringBuilder sb, byte[] b, int off, int len, boolean spaced) {
+        Objects.checkFromIndexSize(off,len,b.length);
+        for(int i=off; i<off+len; i++) {
+            append(sb,b[i]);
+            if(spaced) sb.append(' ');
+        }
+        return sb;
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // perByte characters for every one of len bytes plus extra ones
+    private static int size(int len, int perByte, int extra) {
+        long n = (long)perByte*len+extra;
+        if(n>Integer.MAX_VALUE-8) throw new IllegalArgumentException("too many bytes for a String: "+ len);
+        return (int)n;
+    }
+} // END_CLASS
@@ -0,0 +1,83 @@
+// aesIV.java
+// Sources of initialization vectors (IV) for the modes of operation
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+public interface aesIV {
+
+    // stores len bytes (one or more 16 bytes IVs) at IV[off]
+    void nextIV(byte[] IV, int off, int len);
+
+    // cryptographically secure IVs, used by default. Every thread has its
+    // own generator and buffer so threads never wait on each other.
+    aesIV SECURE = new Secure();
+
+    // deterministic IVs: seed in the first 8 bytes and a counter in the
+    // last 8 ones. Predictable, only for tests and benchmarks.
+    static aesIV counter(long seed) {
+        return new Counter(seed);
+    }
+
+    final class Secure implements aesIV {
+        // random bytes generated at once
+        private static final int BUFFER = 4096;
+
+        private static final class Buffer {
+            final SecureRandom rand = newRandom();
+            final byte[] buf = new byte[BUFFER];
+            int pos = BUFFER;
+        }
+
+        private final ThreadLocal<Buffer> local = ThreadLocal.withInitial(Buffer::new);
+
+        private Secure() {
+        }
+
+        public void nextIV(byte[] IV, int off, int len) {
+            Buffer b = local.get();
+            while(len>0) {
+                // refill the buffer in bulk
+                if(b.pos==BUFFER) {
+                    b.rand.nextBytes(b.buf);
+                    b.pos = 0;
+                }
+                int k = Math.min(len,BUFFER-b.pos);
+                System.arraycopy(b.buf,b.pos,IV,off,k);
+                b.pos+=k; off+=k; len-=k;
+            }
+        }
+
+        // the default NativePRNG shares a global lock between instances,
+        // DRBG instances are independent
+        private static SecureRandom newRandom() {
+            try {
+                return SecureRandom.getInstance("DRBG");
+            } catch(NoSuchAlgorithmException e) {
+                return new SecureRandom();
+            }
+        }
+    }
+
+    final class Counter implements aesIV {
+        private final long seed;
+        private final AtomicLong count = new AtomicLong();
+
+        private Counter(long seed) {
+            this.seed = seed;
+        }
+
+        public void nextIV(byte[] IV, int off, int len) {
+            long c = count.getAndAdd((len+15)/16);
+            for(int i=0; i<len; i++) {
+                long w = (i&8)==0 ? seed : c+i/16;
+                IV[off+i] = (byte)(w>>>(56-8*(i&7)));
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+// aesJCE.java
+// Engine backed by the JDK provider (javax.crypto AES/ECB/NoPadding)
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+// The JDK AES uses the AES-NI instructions when the CPU has them (HotSpot
+// intrinsics). Blocks are ciphered with ECB/NoPadding, so every call is
+// independent and the output is the same as the other engines. Cipher
+// objects are not thread safe and are expensive to initialize: each
+// thread keeps the ones of the last key it used, until that key is
+// destroyed (see Ciphers).
+final class aesJCE implements aesEngine {
+
+    // the provider keeps its own schedule: when the key is destroyed the
+    // ciphers are initialized again with a zero key to overwrite it
+    private static final class Ciphers implements aesKey.Copy {
+        volatile aesKey key;
+        Cipher enc, dec;
+
+        public synchronized void wipe(aesKey k) {
+            if(key!=k) return;
+            key = null;
+            try {
+                SecretKeySpec zero = new SecretKeySpec(new byte[k.Lk/8],"AES");
+                enc.init(Cipher.ENCRYPT_MODE,zero);
+                dec.init(Cipher.DECRYPT_MODE,zero);
+            } catch(GeneralSecurityException e) {
+                // a zero key is valid: drop the ciphers anyway
+                enc = dec = null;
+            }
+        }
+    }
+
+    private final ThreadLocal<Ciphers> local = ThreadLocal.withInitial(Ciphers::new);
+
+    aesJCE() {
+    }
+
+    public void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+        encryptBlocks(key,in,inOff,out,outOff,1);
+    }
+
+    public void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+        decryptBlocks(key,in,inOff,out,outOff,1);
+    }
+
+    public void encryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        update(ciphers(key).enc,in,inOff,out,outOff,count);
+    }
+
+    public void decryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        update(ciphers(key).dec,in,inOff,out,outOff,count);
+    }
+
+    public String toString() { return "jce"; }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    private Ciphers ciphers(aesKey key) {
+        key.check();
+        Ciphers c = local.get();
+        if(c.key!=key) {
+            synchronized(c) {
+                key.copied(c);
+                try {
+                    byte[] k = key.getEncoded();
+                    SecretKeySpec spec = new SecretKeySpec(k,"AES");
+                    Arrays.fill(k,(byte)0);
+                    if(c.enc==null) {
+                        c.enc = Cipher.getInstance("AES/ECB/NoPadding");
+                        c.dec = Cipher.getInstance("AES/ECB/NoPadding");
+                    }
+                    c.enc.init(Cipher.ENCRYPT_MODE,spec);
+                    c.dec.init(Cipher.DECRYPT_MODE,spec);
+                } catch(GeneralSecurityException e) {
+                    // AES/ECB/NoPadding is mandatory in every JDK
+                    throw new IllegalStateException(e);
+                }
+                c.key = key;
+            }
+        }
+        return c;
+    }
+
+    private static void update(Cipher cipher, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        try {
+            cipher.update(in,inOff,16*count,out,outOff);
+        } catch(GeneralSecurityException e) {
+            // out is too short
+            throw new ArrayIndexOutOfBoundsException(e.getMessage());
+        }
+    }
+} // END_CLASS
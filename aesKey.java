@@ -0,0 +1,223 @@
+// aesKey.java
+// Prepared AES key: the key schedule is expanded once and reused
+// by every block and every message ciphered with it.
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+// Instances can be shared between threads and cached: the schedules are
+// never written after they are computed (the forward one in the
+// constructor, the inverse one on the first decryption) until destroy.
+// A destroyed key can not be used any more: ciphering with it throws
+// IllegalStateException, also through the engines (see check). Engines
+// that keep their own copy of the schedule register it (see copied) and
+// destroy zeroes it too, in every thread.
+public final class aesKey {
+
+    // key length in bits, key length in words and number of rounds
+    final int Lk, Nk, Nr;
+    // forward round keys (keyExpansion)
+    final byte[][][] W;
+    // round keys packed by columns for the T-table rijndael
+    final int[] rk;
+    // original key bytes (equals and hashCode)
+    private final byte[] key;
+    // inverse schedule, null until the first decryption
+    private volatile Inverse inverse;
+    // hash of the key bytes, kept after destroy (keys in hash maps)
+    private final int hash;
+    private volatile boolean destroyed;
+    // engine copies of the schedule (this lock), weak: they belong to
+    // per-thread caches that die with their threads
+    private final Set<Copy> copies = Collections.newSetFromMap(new WeakHashMap<Copy,Boolean>());
+
+    // a copy of the schedule kept by an engine (see aesBitslice.Scratch)
+    interface Copy {
+        // zeroes the copy if it still belongs to key
+        void wipe(aesKey key);
+    }
+
+    // inverse round keys (invKeyExpansion) and packed for invRijndael
+    private static final class Inverse {
+        final byte[][][] InvW;
+        final int[] InvRk;
+
+        Inverse(byte[][][] InvW) {
+            this.InvW  = InvW;
+            this.InvRk = aes.packKeys(InvW);
+        }
+    }
+
+    public aesKey(byte[] key) {
+        this(key,key.length*8);
+    }
+
+    public aesKey(BigInteger K, int Lk) {
+        this(aes.keyBytes(K,checkLength(Lk)/32),Lk);
+    }
+
+    private aesKey(byte[] key, int Lk) {
+        this.Lk    = checkLength(Lk);
+        this.Nk    = Lk/32;
+        this.Nr    = Nk+6;
+        this.key   = key.clone();
+        this.W     = aes.keyExpansion(this.key,Nk,Nr);
+        this.rk    = aes.packKeys(W);
+        this.hash  = Arrays.hashCode(this.key);
+    }
+
+    // ciphers one block with the T-table rijndael. Nothing is allocated,
+    // in and out blocks can be the same.
+    public void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        check();
+        aes.rijndael(in,inOff,out,outOff,rk,Nr);
+    }
+
+    public void decryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        aes.invRijndael(in,inOff,out,outOff,inverse().InvRk,Nr);
+    }
+
+    // same as above over heap, direct or mapped buffers (absolute offsets)
+    public void encryptBlock(ByteBuffer in, int inOff, ByteBuffer out, int outOff) {
+        check();
+        aes.rijndael(in,inOff,out,outOff,rk,Nr);
+    }
+
+    public void decryptBlock(ByteBuffer in, int inOff, ByteBuffer out, int outOff) {
+        aes.invRijndael(in,inOff,out,outOff,inverse().InvRk,Nr);
+    }
+
+    // ciphers count consecutive blocks (ECB)
+    public void encryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int count) {
+        check();
+        for(int i=0; i<count; i++, inOff+=16, outOff+=16)
+            aes.rijndael(in,inOff,out,outOff,rk,Nr);
+    }
+
+    public void decryptBlocks(byte[] in, int inOff, byte[] out, int outOff, int count) {
+        int[] InvRk = inverse().InvRk;
+        for(int i=0; i<count; i++, inOff+=16, outOff+=16)
+            aes.invRijndael(in,inOff,out,outOff,InvRk,Nr);
+    }
+
+    public void encryptBlocks(ByteBuffer in, int inOff, ByteBuffer out, int outOff, int count) {
+        check();
+        aes.blocks(true,in,inOff,out,outOff,rk,Nr,count);
+    }
+
+    public void decryptBlocks(ByteBuffer in, int inOff, ByteBuffer out, int outOff, int count) {
+        aes.blocks(false,in,inOff,out,outOff,inverse().InvRk,Nr,count);
+    }
+
+    // key length in bits (128, 192 or 256)
+    public int getKeyLength() {
+        return Lk;
+    }
+
+    // number of rounds (10, 12 or 14)
+    public int getRounds() {
+        return Nr;
+    }
+
+    // copy of the key bytes (engines that prepare their own key, see aesJCE)
+    byte[] getEncoded() {
+        check();
+        return key.clone();
+    }
+
+    // inverse round keys (reference invRijndael)
+    byte[][][] invW() {
+        return inverse().InvW;
+    }
+
+    // inverse round keys packed for the T-table invRijndael
+    int[] invRk() {
+        return inverse().InvRk;
+    }
+
+    // zeroes the key bytes and the schedules. The key can not be used
+    // afterwards (see aesKeyCache).
+    public void destroy() {
+        destroyed = true;
+        // copied throws from now on, so the list is complete
+        List<Copy> list;
+        synchronized(this) {
+            list = new ArrayList<Copy>(copies);
+            copies.clear();
+        }
+        for(Copy c : list) c.wipe(this);
+        Arrays.fill(key,(byte)0);
+        Arrays.fill(rk,0);
+        for(byte[][] w : W) for(byte[] row : w) Arrays.fill(row,(byte)0);
+        Inverse i = inverse;
+        if(i!=null) {
+            Arrays.fill(i.InvRk,0);
+            for(byte[][] w : i.InvW) for(byte[] row : w) Arrays.fill(row,(byte)0);
+        }
+    }
+
+    public boolean isDestroyed() {
+        return destroyed;
+    }
+
+    // throws IllegalStateException if the key was destroyed. Engines that
+    // keep their own copy of the schedule (bitsliced, JCE, vector) check
+    // it on every call too.
+    void check() {
+        if(destroyed) throw new IllegalStateException("destroyed AES key");
+    }
+
+    // registers a copy of the schedule, before it is made. Throws
+    // IllegalStateException if the key was destroyed.
+    synchronized void copied(Copy c) {
+        check();
+        copies.add(c);
+    }
+
+    // number of engine copies that destroy will zero
+    synchronized int copies() {
+        return copies.size();
+    }
+
+    // a destroyed key is only equal to itself (its bytes are zeroes)
+    @Override
+    public boolean equals(Object o) {
+        if(o==this) return true;
+        if(!(o instanceof aesKey)) return false;
+        aesKey k = (aesKey)o;
+        if(destroyed || k.destroyed) return false;
+        // constant time comparison of key material
+        return MessageDigest.isEqual(key,k.key);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    // computed once, two threads can compute it at the same time (same
+    // result, one of them is kept)
+    private Inverse inverse() {
+        check();
+        Inverse i = inverse;
+        if(i==null) inverse = i = new Inverse(aes.invKeyExpansion(key,Nk,Nr));
+        return i;
+    }
+
+    private static int checkLength(int Lk) {
+        if(Lk!=128 && Lk!=192 && Lk!=256)
+            throw new IllegalArgumentException("invalid AES key length: "+Lk);
+        return Lk;
+    }
+} // END_CLASS
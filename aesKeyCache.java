@@ -0,0 +1,239 @@
+// aesKeyCache.java
+// Bounded cache of prepared keys (expanded key schedules)
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+// Maps key bytes (their length is the key length) to an aesKey, so keys
+// used again are not expanded again. The inverse schedule is computed by
+// aesKey on the first decryption.
+//
+// Entries are evicted when the cache is full (least recently used first)
+// and when they have not been used for ttl. Evicted keys are zeroed
+// (aesKey.destroy, also the copies kept by the engines), but only when no
+// withKey call is using them: keys must not be kept outside withKey.
+//
+// The cache is split in segments by key hash, each one a LinkedHashMap
+// in access order with its own lock, so threads using different keys
+// rarely wait on each other. Keys are expanded outside the lock. Expired
+// keys of a segment go on its next withKey call; besides, a withKey call
+// at most every ttl/4 sweeps all the segments, so the keys of idle
+// tenants do not stay in memory while others use the cache. With no
+// calls at all nothing runs: call expire to sweep from a timer.
+public final class aesKeyCache {
+
+    // maximum number of segments (a power of 2)
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final long ttl;
+    // time of the next sweep of all the segments
+    private final AtomicLong sweep;
+    private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+    // at most maxEntries keys, unused keys are evicted after ttl
+    public aesKeyCache(int maxEntries, long ttl, TimeUnit unit) {
+        if(maxEntries<1) throw new IllegalArgumentException("maxEntries must be positive");
+        this.ttl = unit.toNanos(ttl);
+        this.sweep = new AtomicLong(System.nanoTime()+this.ttl/4);
+        // at least one entry per segment
+        int n = Math.min(SEGMENTS,Integer.highestOneBit(maxEntries));
+        this.segments = new Segment[n];
+        for(int i=0; i<n; i++) segments[i] = new Segment((maxEntries+n-1-i)/n);
+    }
+
+    // calls f with the prepared key of key bytes. The key can not be
+    // evicted and zeroed while f runs.
+    public <R> R withKey(byte[] key, Function<aesKey,R> f) {
+        Id id = new Id(key);
+        long now = System.nanoTime(), next = sweep.get();
+        if(now-next>=0 && sweep.compareAndSet(next,now+ttl/4)) expire(now);
+        Segment s = segments[(id.hash^id.hash>>>16)&(segments.length-1)];
+        Entry e = s.acquire(id,now);
+        try {
+            return f.apply(e.key);
+        } finally {
+            s.release(e);
+        }
+    }
+
+    // aes.xifrarAES / aes.desxifrarAES with a cached key
+    public byte[] xifrarAES(byte[] M, byte[] key) {
+        return withKey(key,k -> aes.xifrarAES(M,k));
+    }
+
+    public byte[] desxifrarAES(byte[] C, byte[] key) {
+        return withKey(key,k -> aes.desxifrarAES(C,k));
+    }
+
+    // evicts (and zeroes) the keys not used for ttl in every segment
+    public void expire() {
+        expire(System.nanoTime());
+    }
+
+    // evicts (and zeroes) every key
+    public void clear() {
+        for(Segment s : segments) s.clear();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long evictions() {
+        return evictions.sum();
+    }
+
+    // keys in the cache
+    public int size() {
+        int n = 0;
+        for(Segment s : segments) n+=s.size();
+        return n;
+    }
+
+    public String toString() {
+        return "aesKeyCache[size="+ size() +", hits="+ hits() +", misses="+ misses() +", evictions="+ evictions() +"]";
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    private void expire(long now) {
+        for(Segment s : segments) s.expire(now);
+    }
+
+    // key bytes as a map key
+    private static final class Id {
+        final byte[] key;
+        final int hash;
+
+        Id(byte[] key) {
+            this.key  = key.clone();
+            this.hash = Arrays.hashCode(key);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Id && MessageDigest.isEqual(key,((Id)o).key);
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        final Id id;
+        final aesKey key;
+        // last use, withKey calls running and evicted flag (segment lock)
+        long used;
+        int pins;
+        boolean evicted;
+
+        Entry(Id id, aesKey key) {
+            this.id  = id;
+            this.key = key;
+        }
+    }
+
+    private final class Segment {
+        private final int max;
+        private final LinkedHashMap<Id,Entry> map;
+
+        Segment(int max) {
+            this.max = max;
+            this.map = new LinkedHashMap<Id,Entry>(16,0.75f,true) {
+                protected boolean removeEldestEntry(Map.Entry<Id,Entry> eldest) {
+                    if(size()<=Segment.this.max) return false;
+                    evict(eldest.getValue());
+                    return true;
+                }
+            };
+        }
+
+        // the entry of id, pinned. A new key is expanded without the lock;
+        // if another thread added it meanwhile, its key is used.
+        Entry acquire(Id id, long now) {
+            Entry e = lookup(id,now);
+            if(e!=null) return e;
+            misses.increment();
+            return insert(id,new aesKey(id.key),now);
+        }
+
+        private synchronized Entry lookup(Id id, long now) {
+            expire(now);
+            Entry e = map.get(id);
+            if(e==null) return null;
+            hits.increment();
+            Arrays.fill(id.key,(byte)0);
+            return pin(e,now);
+        }
+
+        private synchronized Entry insert(Id id, aesKey key, long now) {
+            Entry e = map.get(id);
+            if(e==null) {
+                e = new Entry(id,key);
+                map.put(id,e);
+            } else {
+                key.destroy();
+                Arrays.fill(id.key,(byte)0);
+            }
+            return pin(e,now);
+        }
+
+        private Entry pin(Entry e, long now) {
+            e.used = now;
+            e.pins++;
+            return e;
+        }
+
+        synchronized void release(Entry e) {
+            if(--e.pins==0 && e.evicted) wipe(e);
+        }
+
+        synchronized void clear() {
+            for(Entry e : map.values()) evict(e);
+            map.clear();
+        }
+
+        synchronized int size() {
+            return map.size();
+        }
+
+        // access order: the least recently used entries are first
+        synchronized void expire(long now) {
+            for(Iterator<Entry> it=map.values().iterator(); it.hasNext(); ) {
+                Entry e = it.next();
+                if(now-e.used<ttl) break;
+                it.remove();
+                evict(e);
+            }
+        }
+
+        private void evict(Entry e) {
+            evictions.increment();
+            e.evicted = true;
+            if(e.pins==0) wipe(e);
+        }
+
+        private void wipe(Entry e) {
+            e.key.destroy();
+            Arrays.fill(e.id.key,(byte)0);
+        }
+    }
+} // END_CLASS
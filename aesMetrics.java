@@ -0,0 +1,272 @@
+// aesMetrics.java
+// Runtime metrics of the cipher operations (JMX and Flight Recorder)
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Counts calls, bytes, blocks, estimated allocation and latency of
+// keyExpansion, invKeyExpansion, rijndael, invRijndael, IVpadMessage,
+// xifrarAES and desxifrarAES. Off by default, enable with
+//   -Daes.metrics=true
+// ENABLED is a static final, so when it is false the JIT removes the
+// instrumentation of aes (every hook is an "if(aesMetrics.ENABLED)").
+//
+// When enabled:
+//   - every operation is an MBean aes:type=Operation,name=<operation>
+//   - every keyExpansion, IVpadMessage, xifrarAES and desxifrarAES call
+//     is an aes.Operation Flight Recorder event (when recording)
+//   - an aes.Statistics event with the totals of each operation is
+//     emitted every 10 seconds while recording
+// rijndael and invRijndael run once per block, so only one call out of
+// SAMPLE is timed and they have no event of their own. Only the reference
+// and T-table engines go through them (see aesEngine). Allocation is the
+// size of the arrays the operation creates, without object headers.
+public final class aesMetrics {
+
+    public static final boolean ENABLED = Boolean.getBoolean("aes.metrics");
+
+    // one out of SAMPLE block operations is timed
+    static final int SAMPLE = 64;
+    // latency buckets: bucket i counts times in [2^i, 2^(i+1)) ns
+    static final int BUCKETS = 40;
+
+    public static final Operation KEY_EXPANSION     = new Operation("keyExpansion",true);
+    public static final Operation INV_KEY_EXPANSION = new Operation("invKeyExpansion",true);
+    public static final Operation RIJNDAEL          = new Operation("rijndael",false);
+    public static final Operation INV_RIJNDAEL      = new Operation("invRijndael",false);
+    public static final Operation PAD               = new Operation("IVpadMessage",true);
+    public static final Operation XIFRAR            = new Operation("xifrarAES",true);
+    public static final Operation DESXIFRAR         = new Operation("desxifrarAES",true);
+
+    private static final List<Operation> ALL = Collections.unmodifiableList(Arrays.asList(
+        KEY_EXPANSION,INV_KEY_EXPANSION,RIJNDAEL,INV_RIJNDAEL,PAD,XIFRAR,DESXIFRAR));
+
+    static {
+        if(ENABLED) register();
+    }
+
+    private aesMetrics() {
+    }
+
+    public static List<Operation> operations() {
+        return ALL;
+    }
+
+    public static void reset() {
+        for(Operation o : ALL) o.reset();
+    }
+
+    // attributes of each MBean
+    public interface OperationMBean {
+        String getName();
+        long getCalls();
+        long getBytes();
+        long getBlocks();
+        long getAllocatedBytes();
+        long getTimedCalls();
+        long getTotalNanos();
+        double getMeanNanos();
+        long getP50Nanos();
+        long getP99Nanos();
+        long[] getLatencyHistogram();
+        void reset();
+    }
+
+    public static final class Operation implements OperationMBean {
+        private final String name;
+        private final boolean event;
+        private final LongAdder calls = new LongAdder(), bytes = new LongAdder(), blocks = new LongAdder();
+        private final LongAdder allocated = new LongAdder(), timed = new LongAdder(), nanos = new LongAdder();
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        Operation(String name, boolean event) {
+            this.name  = name;
+            this.event = event;
+        }
+
+        // start is start() or sample() (0: not timed)
+        void record(long start, long bytes, long blocks, long allocated) {
+            calls.increment();
+            this.bytes.add(bytes);
+            this.blocks.add(blocks);
+            this.allocated.add(allocated);
+            if(start==0) return;
+            long t = System.nanoTime()-start;
+            timed.increment();
+            nanos.add(t);
+            histogram.incrementAndGet(bucket(t));
+            if(event) OperationEvent.emit(name,t,bytes,blocks,allocated);
+        }
+
+        public String getName() { return name; }
+        public long getCalls() { return calls.sum(); }
+        public long getBytes() { return bytes.sum(); }
+        public long getBlocks() { return blocks.sum(); }
+        public long getAllocatedBytes() { return allocated.sum(); }
+        public long getTimedCalls() { return timed.sum(); }
+        public long getTotalNanos() { return nanos.sum(); }
+
+        public double getMeanNanos() {
+            long n = timed.sum();
+            return n==0 ? 0 : nanos.sum()/(double)n;
+        }
+
+        public long getP50Nanos() { return percentile(0.50); }
+        public long getP99Nanos() { return percentile(0.99); }
+
+        public long[] getLatencyHistogram() {
+            long[] h = new long[BUCKETS];
+            for(int i=0; i<BUCKETS; i++) h[i] = histogram.get(i);
+            return h;
+        }
+
+        public void reset() {
+            calls.reset(); bytes.reset(); blocks.reset();
+            allocated.reset(); timed.reset(); nanos.reset();
+            for(int i=0; i<BUCKETS; i++) histogram.set(i,0);
+        }
+
+        // upper bound of the bucket holding the p fraction of the timed calls
+        public long percentile(double p) {
+            long[] h = getLatencyHistogram();
+            long n = 0, seen = 0;
+            for(long c : h) n+=c;
+            if(n==0) return 0;
+            for(int i=0; i<BUCKETS; i++)
+                if((seen+=h[i])>=p*n) return 2L<<i;
+            return 2L<<(BUCKETS-1);
+        }
+
+        public String toString() {
+            return name +"[calls="+ getCalls() +", bytes="+ getBytes() +", blocks="+ getBlocks()
+                   +", allocated="+ getAllocatedBytes() +", mean="+ (long)getMeanNanos() +"ns, p99<"+ getP99Nanos() +"ns]";
+        }
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // start time of a timed operation
+    static long start() {
+        return System.nanoTime();
+    }
+
+    // start time of one out of SAMPLE block operations, 0 for the others
+    static long sample() {
+        return ThreadLocalRandom.current().nextInt(SAMPLE)==0 ? System.nanoTime() : 0;
+    }
+
+    static int bucket(long t) {
+        return Math.min(BUCKETS-1,63-Long.numberOfLeadingZeros(Math.max(t,1)));
+    }
+
+    // MBeans and the periodic event; a second copy of the class (another
+    // class loader) keeps the MBeans of the first one
+    private static void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for(Operation o : ALL) {
+                ObjectName name = new ObjectName("aes:type=Operation,name="+ o.name);
+                if(!server.isRegistered(name)) server.registerMBean(new StandardMBean(o,OperationMBean.class),name);
+            }
+        } catch(JMException e) {
+            // registered meanwhile by another copy of the class, or no MBean
+            // server: the counters still work through operations()
+        }
+        try {
+            FlightRecorder.addPeriodicEvent(StatisticsEvent.class,StatisticsEvent::emit);
+        } catch(LinkageError e) {
+            // runtime without jdk.jfr
+        }
+    }
+
+    @Name("aes.Operation")
+    @Label("AES Operation")
+    @Category("AES")
+    @Description("A cipher operation and its latency")
+    @StackTrace(false)
+    static final class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Latency") @Timespan(Timespan.NANOSECONDS)
+        long latency;
+        @Label("Bytes") @DataAmount
+        long bytes;
+        @Label("Blocks")
+        long blocks;
+        @Label("Allocated") @DataAmount
+        long allocated;
+
+        static void emit(String operation, long latency, long bytes, long blocks, long allocated) {
+            OperationEvent e = new OperationEvent();
+            if(!e.shouldCommit()) return;
+            e.operation = operation;
+            e.latency   = latency;
+            e.bytes     = bytes;
+            e.blocks    = blocks;
+            e.allocated = allocated;
+            e.commit();
+        }
+    }
+
+    @Name("aes.Statistics")
+    @Label("AES Statistics")
+    @Category("AES")
+    @Description("Totals of a cipher operation since start or reset")
+    @Period("10 s")
+    @StackTrace(false)
+    static final class StatisticsEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Calls")
+        long calls;
+        @Label("Bytes") @DataAmount
+        long bytes;
+        @Label("Blocks")
+        long blocks;
+        @Label("Allocated") @DataAmount
+        long allocated;
+        @Label("Mean Latency") @Timespan(Timespan.NANOSECONDS)
+        long mean;
+        @Label("P99 Latency") @Timespan(Timespan.NANOSECONDS)
+        long p99;
+
+        static void emit() {
+            for(Operation o : ALL) {
+                StatisticsEvent e = new StatisticsEvent();
+                e.operation = o.name;
+                e.calls     = o.getCalls();
+                e.bytes     = o.getBytes();
+                e.blocks    = o.getBlocks();
+                e.allocated = o.getAllocatedBytes();
+                e.mean      = (long)o.getMeanNanos();
+                e.p99       = o.getP99Nanos();
+                e.commit();
+            }
+        }
+    }
+} // END_CLASS
@@ -0,0 +1,506 @@
+// aesService.java
+// Asynchronous encryption service that coalesces concurrent requests
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// xifrarAES and desxifrarAES requests are queued and answered with a
+// CompletableFuture. A dispatcher thread takes the queued requests, groups
+// them by key and operation and hands every group to a worker as a single
+// batch:
+//   - encryption: one aesBatch (all the IVs at once, the CBC chains of the
+//     messages together, 4 blocks per kernel call with the T-table engine)
+//   - decryption: the blocks of all the ciphertexts in one engine pass
+//     (encryptBlocks/decryptBlocks of the bulk engines)
+// At most one batch per worker runs at a time; while all of them are busy
+// new requests wait in the queue and become part of larger batches, so
+// there is no extra latency when the service is idle.
+//
+// The queue is bounded: submitting blocks the caller while it is full
+// (backpressure). Workers and connections run on virtual threads on JDK
+// 21+ and on platform threads before it.
+//
+// listen(path) also serves the requests of other processes on a Unix
+// domain socket. Frames (integers are big endian):
+//   request   op (1 byte: 1 xifrarAES, 2 desxifrarAES), key length (1
+//             byte: 16, 24 or 32), key, data length (int), data
+//   response  status (1 byte: 0 ok, 1 error), length (int), result or
+//             error message (UTF-8)
+// Data longer than MAX_FRAME bytes or a wrong key length are answered
+// with an error and the connection is closed (nothing of the announced
+// size is allocated). Client speaks this protocol.
+public final class aesService implements Closeable {
+
+    // default queue capacity and requests per batch
+    public static final int CAPACITY = 1024, MAX_BATCH = 256;
+    // batch size buckets: bucket i counts batches of [2^i, 2^(i+1)) requests
+    private static final int BUCKETS = 16;
+    // keys kept prepared for the socket requests
+    private static final int SOCKET_KEYS = 64;
+    // longest data of a socket request (a response adds the IV and the
+    // padding at most)
+    public static final int MAX_FRAME = 1<<26;
+
+    private final BlockingQueue<Request> queue;
+    private final int maxBatch;
+    private final aesEngine engine;
+    private final Semaphore workers;
+    private final ExecutorService executor, io;
+    private final Thread dispatcher;
+    private final aesKeyCache keys = new aesKeyCache(SOCKET_KEYS,1,TimeUnit.MINUTES);
+    // listening sockets and accepted connections (guarded by servers)
+    private final List<ServerSocketChannel> servers = new ArrayList<ServerSocketChannel>();
+    private final Set<SocketChannel> connections = new HashSet<SocketChannel>();
+    private volatile boolean closed;
+
+    private final LongAdder requests = new LongAdder(), batches = new LongAdder();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max,0);
+    private final AtomicLongArray batchSizes = new AtomicLongArray(BUCKETS);
+
+    public aesService() {
+        this(CAPACITY,MAX_BATCH,Runtime.getRuntime().availableProcessors(),aesEngines.getDefault());
+    }
+
+    // queue of capacity requests, batches of maxBatch requests at most and
+    // up to workers batches at the same time
+    public aesService(int capacity, int maxBatch, int workers, aesEngine engine) {
+        if(capacity<1 || maxBatch<1 || workers<1) throw new IllegalArgumentException("capacity, maxBatch and workers must be positive");
+        this.queue    = new ArrayBlockingQueue<Request>(capacity);
+        this.maxBatch = maxBatch;
+        this.engine   = engine;
+        this.workers  = new Semaphore(workers);
+        ExecutorService v = virtualThreads();
+        this.executor = v!=null ? v : Executors.newFixedThreadPool(workers,aesService::daemon);
+        this.io       = v!=null ? v : Executors.newCachedThreadPool(aesService::daemon);
+        this.dispatcher = daemon(this::dispatch);
+        dispatcher.setName("aesService-dispatcher");
+        dispatcher.start();
+    }
+
+    // xifrarAES(M,key) and desxifrarAES(C,key) of aes, asynchronous. The
+    // key must not be destroyed before the future completes.
+    public CompletableFuture<byte[]> xifrarAES(byte[] M, aesKey key) {
+        return submit(true,M,key);
+    }
+
+    public CompletableFuture<byte[]> desxifrarAES(byte[] C, aesKey key) {
+        return submit(false,C,key);
+    }
+
+    // serves the requests on a Unix domain socket at path (it must not
+    // exist), until close
+    public void listen(Path path) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        server.bind(UnixDomainSocketAddress.of(path));
+        synchronized(servers) {
+            if(closed) {
+                server.close();
+                throw new IOException("service closed");
+            }
+            servers.add(server);
+        }
+        io.execute(() -> accept(server,path));
+    }
+
+    // requests waiting in the queue now and at most
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public long maxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    public long requests() {
+        return requests.sum();
+    }
+
+    public long batches() {
+        return batches.sum();
+    }
+
+    public double meanBatchSize() {
+        long b = batches.sum();
+        return b==0 ? 0 : requests.sum()/(double)b;
+    }
+
+    // number of batches of [2^i, 2^(i+1)) requests
+    public long[] batchSizeHistogram() {
+        long[] h = new long[BUCKETS];
+        for(int i=0; i<BUCKETS; i++) h[i] = batchSizes.get(i);
+        return h;
+    }
+
+    public String toString() {
+        return "aesService[queue="+ queueDepth() +", maxQueue="+ maxQueueDepth() +", requests="+ requests()
+               +", batches="+ batches() +", meanBatch="+ String.format("%.2f",meanBatchSize()) +"]";
+    }
+
+    // stops the sockets, their connections and the dispatcher, and waits
+    // for the running batches. Requests already queued are answered, later
+    // ones are rejected. Not to be called from a worker (a dependent action
+    // of a result future), it would wait for itself.
+    public void close() {
+        List<Closeable> sockets = new ArrayList<Closeable>();
+        synchronized(servers) {
+            if(closed) return;
+            closed = true;
+            sockets.addAll(servers);
+            sockets.addAll(connections);
+        }
+        // connections blocked reading a request return
+        for(Closeable s : sockets) {
+            try {
+                s.close();
+            } catch(IOException e) {
+            }
+        }
+        boolean interrupted = false;
+        dispatcher.interrupt();
+        try {
+            dispatcher.join();
+        } catch(InterruptedException e) {
+            interrupted = true;
+        }
+        executor.shutdown();
+        io.shutdown();
+        try {
+            // every queued request was handed to a worker by the dispatcher
+            executor.awaitTermination(Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+            io.awaitTermination(Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+        } catch(InterruptedException e) {
+            interrupted = true;
+        }
+        keys.clear();
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
+    // blocking client of the socket protocol
+    public static final class Client implements Closeable {
+        private final SocketChannel ch;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+
+        public Client(Path path) throws IOException {
+            ch  = SocketChannel.open(UnixDomainSocketAddress.of(path));
+            in  = new DataInputStream(new BufferedInputStream(Channels.newInputStream(ch)));
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(ch)));
+        }
+
+        public synchronized byte[] xifrarAES(byte[] M, byte[] key) throws IOException {
+            return call(1,M,key);
+        }
+
+        public synchronized byte[] desxifrarAES(byte[] C, byte[] key) throws IOException {
+            return call(2,C,key);
+        }
+
+        public void close() throws IOException {
+            ch.close();
+        }
+
+        private byte[] call(int op, byte[] data, byte[] key) throws IOException {
+            // the key length is sent in one byte
+            if(key.length!=16 && key.length!=24 && key.length!=32)
+                throw new IllegalArgumentException("invalid AES key length: "+ 8*key.length);
+            if(data.length>MAX_FRAME) throw new IllegalArgumentException("data longer than "+ MAX_FRAME +" bytes");
+            out.writeByte(op);
+            out.writeByte(key.length);
+            out.write(key);
+            out.writeInt(data.length);
+            out.write(data);
+            out.flush();
+            int status = in.readUnsignedByte();
+            int n = in.readInt();
+            if(n<0 || n>MAX_FRAME+48) throw new IOException("invalid response length "+ n);
+            byte[] r = new byte[n];
+            in.readFully(r);
+            if(status!=0) throw new IOException(new String(r,StandardCharsets.UTF_8));
+            return r;
+        }
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    private static final class Request {
+        final boolean encrypt;
+        final byte[] data;
+        final aesKey key;
+        final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+
+        Request(boolean encrypt, byte[] data, aesKey key) {
+            this.encrypt = encrypt;
+            this.data    = data;
+            this.key     = key;
+        }
+    }
+
+    private CompletableFuture<byte[]> submit(boolean encrypt, byte[] data, aesKey key) {
+        Request r = new Request(encrypt,data,key);
+        if(closed) r.result.completeExceptionally(new RejectedExecutionException("service closed"));
+        else {
+            try {
+                queue.put(r);
+                maxDepth.accumulate(queue.size());
+                // queued after the dispatcher stopped
+                if(closed && queue.remove(r)) r.result.completeExceptionally(new RejectedExecutionException("service closed"));
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                r.result.completeExceptionally(e);
+            }
+        }
+        return r.result;
+    }
+
+    private void dispatch() {
+        List<Request> drained = new ArrayList<Request>();
+        boolean stop = false;
+        while(true) {
+            Request first;
+            try {
+                first = stop ? queue.poll() : queue.take();
+            } catch(InterruptedException e) {
+                // close: answer what is queued and stop
+                stop = true;
+                continue;
+            }
+            if(first==null) break;
+            drained.add(first);
+            // wait for a free worker, meanwhile the queue grows
+            workers.acquireUninterruptibly();
+            queue.drainTo(drained,maxBatch-1);
+            // groups by operation and key, in arrival order
+            Map<aesKey,List<Request>> enc = new LinkedHashMap<aesKey,List<Request>>();
+            Map<aesKey,List<Request>> dec = new LinkedHashMap<aesKey,List<Request>>();
+            for(Request r : drained) (r.encrypt ? enc : dec).computeIfAbsent(r.key,k -> new ArrayList<Request>()).add(r);
+            drained.clear();
+            boolean permit = true;
+            for(Map<aesKey,List<Request>> groups : List.of(enc,dec))
+                for(Map.Entry<aesKey,List<Request>> g : groups.entrySet()) {
+                    // the first batch uses the worker already acquired
+                    if(!permit) workers.acquireUninterruptibly();
+                    permit = false;
+                    run(g.getValue(),g.getKey());
+                }
+        }
+    }
+
+    private void run(List<Request> batch, aesKey key) {
+        requests.add(batch.size());
+        batches.increment();
+        batchSizes.incrementAndGet(Math.min(BUCKETS-1,31-Integer.numberOfLeadingZeros(batch.size())));
+        try {
+            executor.execute(() -> {
+                try {
+                    if(batch.get(0).encrypt) encrypt(batch,key);
+                    else decrypt(batch,key);
+                } catch(Throwable e) {
+                    // also errors (OutOfMemoryError on a large batch): no
+                    // future is left incomplete
+                    for(Request r : batch) r.result.completeExceptionally(e);
+                } finally {
+                    workers.release();
+                }
+            });
+        } catch(RejectedExecutionException e) {
+            workers.release();
+            for(Request r : batch) r.result.completeExceptionally(e);
+        }
+    }
+
+    private void encrypt(List<Request> batch, aesKey key) {
+        List<byte[]> M = new ArrayList<byte[]>(batch.size());
+        for(Request r : batch) M.add(r.data);
+        aesBatch b = aesBatch.xifrarAES(M,key,aesIV.SECURE,engine);
+        for(int i=0; i<batch.size(); i++) batch.get(i).result.complete(b.get(i));
+    }
+
+    // the blocks (without IV) of all the ciphertexts are deciphered in a
+    // single engine call, then every message is xored with its previous
+    // ciphertext blocks and unpadded
+    private void decrypt(List<Request> batch, aesKey key) {
+        int blocks = 0;
+        for(Request r : batch)
+            if(valid(r)) blocks+=r.data.length/16-1;
+        byte[] D = new byte[16*blocks];
+        int off = 0;
+        for(Request r : batch)
+            if(valid(r)) {
+                System.arraycopy(r.data,16,D,off,r.data.length-16);
+                off+=r.data.length-16;
+            }
+        engine.decryptBlocks(key,D,0,D,0,blocks);
+        off = 0;
+        for(Request r : batch) {
+            if(!valid(r)) {
+                r.result.completeExceptionally(new IllegalArgumentException("truncated ciphertext"));
+                continue;
+            }
+            int m = r.data.length-16;
+            for(int j=0; j<m; j++) D[off+j] ^= r.data[j];
+            try {
+                // same check as aesCBCRange.length
+                byte[] M = new byte[(int)aesCBCRange.messageLength(D,off+m-8,m)];
+                System.arraycopy(D,off,M,0,M.length);
+                r.result.complete(M);
+            } catch(IllegalArgumentException e) {
+                r.result.completeExceptionally(e);
+            }
+            off+=m;
+        }
+    }
+
+    private static boolean valid(Request r) {
+        return r.data.length>=32 && r.data.length%16==0;
+    }
+
+    private void accept(ServerSocketChannel server, Path path) {
+        try {
+            while(true) {
+                SocketChannel ch = server.accept();
+                synchronized(servers) {
+                    if(closed) {
+                        ch.close();
+                        break;
+                    }
+                    connections.add(ch);
+                }
+                io.execute(() -> serve(ch));
+            }
+        } catch(IOException | RejectedExecutionException e) {
+            // closed
+        } finally {
+            try {
+                Files.deleteIfExists(path);
+            } catch(IOException e) {
+            }
+        }
+    }
+
+    // answers the requests of a connection in order until it is closed
+    private void serve(SocketChannel ch) {
+        try(SocketChannel c = ch) {
+            DataInputStream in   = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+            while(!closed) {
+                int op;
+                try {
+                    op = in.readUnsignedByte();
+                } catch(EOFException e) {
+                    break;
+                }
+                int kl = in.readUnsignedByte();
+                if(kl!=16 && kl!=24 && kl!=32) {
+                    reject(out,"invalid AES key length: "+ 8*kl);
+                    break;
+                }
+                byte[] key = new byte[kl];
+                in.readFully(key);
+                int n = in.readInt();
+                if(n<0 || n>MAX_FRAME) {
+                    reject(out,"invalid data length "+ n +" (at most "+ MAX_FRAME +" bytes)");
+                    break;
+                }
+                byte[] data = new byte[n];
+                in.readFully(data);
+                byte[] result;
+                int status = 0;
+                try {
+                    if(op!=1 && op!=2) throw new IllegalArgumentException("unknown operation "+ op);
+                    result = keys.withKey(key,k -> join(submit(op==1,data,k)));
+                } catch(RuntimeException e) {
+                    // bad request, destroyed key, full queue, engine failure:
+                    // an error frame, the connection stays usable
+                    status = 1;
+                    result = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+                }
+                respond(out,status,result);
+            }
+        } catch(IOException e) {
+            // connection lost (or closed by close)
+        } finally {
+            synchronized(servers) {
+                connections.remove(ch);
+            }
+        }
+    }
+
+    private static void respond(DataOutputStream out, int status, byte[] result) throws IOException {
+        out.writeByte(status);
+        out.writeInt(result.length);
+        out.write(result);
+        out.flush();
+    }
+
+    // error response to a frame that can not be read, the stream can not
+    // be followed after it
+    private static void reject(DataOutputStream out, String message) throws IOException {
+        respond(out,1,message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // result of f, with its exception unwrapped
+    private static byte[] join(CompletableFuture<byte[]> f) {
+        try {
+            return f.get();
+        } catch(ExecutionException e) {
+            Throwable c = e.getCause();
+            if(c instanceof RuntimeException) throw (RuntimeException)c;
+            throw new RejectedExecutionException(c);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+    }
+
+    // Executors.newVirtualThreadPerTaskExecutor() (JDK 21) or null
+    private static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch(ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Thread daemon(Runnable r) {
+        Thread t = new Thread(r);
+        t.setDaemon(true);
+        return t;
+    }
+} // END_CLASS
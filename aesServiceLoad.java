@@ -0,0 +1,82 @@
+// aesServiceLoad.java
+// Load generator for aesService: throughput and latency by concurrency
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+// Threads cipher small messages with the same key as fast as they can,
+// first calling aes.xifrarAES directly and then through an aesService,
+// doubling the number of threads each step. Prints operations per second,
+// p50 and p99 latency and the mean batch of the service.
+//   java aesServiceLoad [message bytes (64)] [ms per step (1000)] [max threads (64)]
+public class aesServiceLoad {
+
+    public static void main(String args[]) throws InterruptedException {
+        int size    = args.length>0 ? Integer.parseInt(args[0]) : 64;
+        long ms     = args.length>1 ? Long.parseLong(args[1]) : 1000;
+        int threads = args.length>2 ? Integer.parseInt(args[2]) : 64;
+        byte[] k = new byte[16], M = new byte[size];
+        Random rand = new Random();
+        rand.nextBytes(k);
+        rand.nextBytes(M);
+        aesKey key = new aesKey(k);
+        // warm up both paths
+        run(4,ms,() -> aes.xifrarAES(M,key));
+        try(aesService s = new aesService()) {
+            run(4,ms,() -> s.xifrarAES(M,key).join());
+        }
+        System.out.println("Message bytes: "+ size +", "+ Runtime.getRuntime().availableProcessors() +" CPUs");
+        System.out.println("threads   direct ops/s   p50 us   p99 us   service ops/s   p50 us   p99 us   batch   max queue");
+        for(int t=1; t<=threads; t*=2) {
+            long[] d = run(t,ms,() -> aes.xifrarAES(M,key));
+            try(aesService s = new aesService()) {
+                long[] v = run(t,ms,() -> s.xifrarAES(M,key).join());
+                System.out.println(String.format("%7d %14d %8.1f %8.1f %15d %8.1f %8.1f %7.1f %11d",
+                    t,1000*d.length/ms,d[d.length/2]/1e3,d[d.length*99/100]/1e3,
+                    1000*v.length/ms,v[v.length/2]/1e3,v[v.length*99/100]/1e3,s.meanBatchSize(),s.maxQueueDepth()));
+            }
+        }
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // sorted latencies (ns) of the operations done by threads threads
+    // during ms milliseconds
+    private static long[] run(int threads, long ms, Runnable op) throws InterruptedException {
+        long[][] lat = new long[threads][];
+        int[] count = new int[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        long end = System.nanoTime()+ms*1_000_000;
+        for(int i=0; i<threads; i++) {
+            int id = i;
+            Thread th = new Thread(() -> {
+                long[] l = new long[1024];
+                int n = 0;
+                for(long t; (t=System.nanoTime())<end; ) {
+                    op.run();
+                    if(n==l.length) l = Arrays.copyOf(l,2*n);
+                    l[n++] = System.nanoTime()-t;
+                }
+                lat[id] = l;
+                count[id] = n;
+                done.countDown();
+            });
+            th.setDaemon(true);
+            th.start();
+        }
+        done.await();
+        int total = 0;
+        for(int c : count) total+=c;
+        long[] all = new long[Math.max(total,1)];
+        for(int i=0, off=0; i<threads; off+=count[i], i++) System.arraycopy(lat[i],0,all,off,count[i]);
+        Arrays.sort(all);
+        return all;
+    }
+} // END_CLASS
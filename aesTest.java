@@ -1,16 +1,140 @@
+import com.sun.management.ThreadMXBean;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 public class aesTest {
 
     private static Random rand = new Random();
     private static int max = 64;
+    // failed tests of every kind, the exit status is 1 if there is any
+    private static int failures = 0;
    
     public static void main(String args[]) {
         
         aes_cbc_test(128);
         aes_cbc_test(192);
         aes_cbc_test(256);
+
+        aes_key_test(128);
+        aes_key_test(192);
+        aes_key_test(256);
+
+        aes_engine_test(128);
+        aes_engine_test(192);
+        aes_engine_test(256);
+
+        aes_alloc_test(128);
+        aes_alloc_test(256);
+
+        aes_parallel_test(128);
+        aes_parallel_test(256);
+
+        aes_ctr_test(128);
+        aes_ctr_test(192);
+        aes_ctr_test(256);
+
+        aes_stream_test(128);
+        aes_stream_test(256);
+
+        aes_file_test(128);
+        aes_file_test(256);
+
+        aes_batch_test(128);
+        aes_batch_test(192);
+        aes_batch_test(256);
+
+        aes_iv_test(128);
+
+        aes_gcm_test(128);
+        aes_gcm_test(192);
+        aes_gcm_test(256);
+
+        aes_bitslice_test(128);
+        aes_bitslice_test(192);
+        aes_bitslice_test(256);
+
+        aes_vector_test(128);
+        aes_vector_test(192);
+        aes_vector_test(256);
+
+        aes_engines_test(128);
+        aes_engines_test(192);
+        aes_engines_test(256);
+
+        aes_cache_test(128);
+        aes_cache_test(256);
+
+        aes_destroy_test(128);
+        aes_destroy_test(256);
+
+        aes_range_test(128);
+        aes_range_test(256);
+
+        aes_chunked_test(128);
+        aes_chunked_test(256);
+
+        aes_metrics_test(128);
+        aes_metrics_test(256);
+
+        aes_buffer_test(128);
+        aes_buffer_test(256);
+
+        aes_service_test(128);
+        aes_service_test(256);
+
+        aes_gf_test(128);
+        aes_gf_test(192);
+        aes_gf_test(256);
+
+        aes_trace_test(128);
+        aes_trace_test(192);
+        aes_trace_test(256);
+
+        if(failures>0) System.exit(1);
+    }
+
+    // prints the results of a test, extra lines after the key length
+    // (total is 0 when the test only counts its failures)
+    private static void results(String name, int Lk, int total, int incorrect, String... extra) {
+        System.out.println(name +" results:");
+        System.out.println("Key length:  "+ Lk);
+        for(String line : extra) System.out.println(line);
+        if(total>0) {
+            System.out.println("Total tests: "+ total);
+            System.out.println("Tests ok:    "+ (total-incorrect));
+        }
+        System.out.println("Tests fail:  "+ incorrect);
+        failures+=incorrect;
     }
    
     // tests aes using CBC mode and padded data (see aes.java 390)
@@ -44,10 +168,1290 @@ public class aesTest {
             System.out.println("********************************");
         }
         // Print results
-        System.out.println("Results:");
-        System.out.println("Key length:  "+ Lk);
-        System.out.println("Total tests: "+ max);
-        System.out.println("Tests ok:    "+ (max-incorrect));
-        System.out.println("Tests fail:  "+ incorrect);
+        results("CBC",Lk,max,incorrect);
+    }
+
+    // tests that a prepared key interoperates with the BigInteger methods
+    private static void aes_key_test(int Lk) {
+
+        int incorrect=0;
+        byte[] bytes = new byte[Lk/8];
+        rand.nextBytes(bytes);
+        BigInteger K = new BigInteger(bytes);
+        // one key setup for every message
+        aesKey key = new aesKey(K,Lk);
+        for(int i=1; i<max; i++) {
+            byte[] data = new byte[i];
+            rand.nextBytes(data);
+            // prepared key -> BigInteger key and back
+            byte[] M1 = aes.desxifrarAES(aes.xifrarAES(data,key),K,Lk);
+            byte[] M2 = aes.desxifrarAES(aes.xifrarAES(data,K,Lk),key);
+            if(!Arrays.equals(data,M1) || !Arrays.equals(data,M2)) incorrect++;
+        }
+        // Print results
+        results("Prepared key",Lk,max,incorrect);
+    }
+
+    // FIPS-197 appendix C example vectors (plaintext 00112233..eeff)
+    private static final String[][] fips197 = {
+        { "000102030405060708090a0b0c0d0e0f",
+          "69c4e0d86a7b0430d8cdb78070b4c55a" },
+        { "000102030405060708090a0b0c0d0e0f1011121314151617",
+          "dda97ca4864cdfe06eaf70a0ec0d7191" },
+        { "000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f",
+          "8ea2b7ca516745bfeafc49904b496089" },
+    };
+
+    // tests that the T-table engine ciphers exactly like the reference one
+    private static void aes_engine_test(int Lk) {
+
+        int incorrect=0;
+        byte[] P = hex("00112233445566778899aabbccddeeff");
+        byte[] C = new byte[16], R = new byte[16];
+        // known answer test
+        String[] kat = fips197[Lk/64-2];
+        aesKey key = new aesKey(hex(kat[0]));
+        aesEngine.TTABLE.encryptBlock(key,P,0,C,0);
+        aesEngine.TTABLE.decryptBlock(key,C,0,R,0);
+        if(!Arrays.equals(C,hex(kat[1])) || !Arrays.equals(R,P)) incorrect++;
+        // random keys and blocks
+        for(int i=1; i<max; i++) {
+            byte[] bytes = new byte[Lk/8];
+            rand.nextBytes(bytes);
+            rand.nextBytes(P);
+            key = new aesKey(bytes);
+            aesEngine.REFERENCE.encryptBlock(key,P,0,R,0);
+            aesEngine.TTABLE.encryptBlock(key,P,0,C,0);
+            boolean error = !Arrays.equals(C,R);
+            aesEngine.REFERENCE.decryptBlock(key,C,0,R,0);
+            aesEngine.TTABLE.decryptBlock(key,C,0,C,0);
+            if(error || !Arrays.equals(C,R) || !Arrays.equals(C,P)) incorrect++;
+        }
+        // Print results
+        results("T-table engine",Lk,max,incorrect);
+    }
+
+    // tests that the block API does not allocate once it is warmed up
+    private static void aes_alloc_test(int Lk) {
+
+        ThreadMXBean mx = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        byte[] bytes = new byte[Lk/8];
+        rand.nextBytes(bytes);
+        aesKey key = new aesKey(bytes);
+        byte[] buf = new byte[16*64];
+        rand.nextBytes(buf);
+        byte[] orig = buf.clone();
+        // warm up (JIT), then measure the same loop
+        long allocated = 0;
+        for(int round=0; round<2; round++) {
+            long before = mx.getThreadAllocatedBytes(id);
+            for(int i=0; i<20000; i++) {
+                key.encryptBlock(buf,0,buf,0);
+                key.decryptBlock(buf,0,buf,0);
+                key.encryptBlocks(buf,16,buf,16,63);
+                key.decryptBlocks(buf,16,buf,16,63);
+            }
+            allocated = mx.getThreadAllocatedBytes(id)-before;
+        }
+        boolean ok = Arrays.equals(buf,orig) && allocated < 1024;
+        // mapped files (aesFile): the heap used must not grow with the size
+        long mapped = 0;
+        try {
+            byte[] data = new byte[4<<20];
+            rand.nextBytes(data);
+            Path M = Files.createTempFile("aes",".txt");
+            Path C = Files.createTempFile("aes",".aes");
+            Files.write(M,data);
+            for(int round=0; round<2; round++) {
+                long before = mx.getThreadAllocatedBytes(id);
+                aesFile.xifrarAES(M,C,key);
+                aesFile.desxifrarAES(C,M,key);
+                mapped = mx.getThreadAllocatedBytes(id)-before;
+            }
+            ok &= Arrays.equals(Files.readAllBytes(M),data) && mapped < data.length/8;
+            Files.delete(M);
+            Files.delete(C);
+        } catch(IOException e) {
+            ok = false;
+        }
+        // Print results
+        results("Block API allocation",Lk,1,ok ? 0 : 1,
+                "Allocated:   "+ allocated +" bytes","Mapped file: "+ mapped +" bytes");
+    }
+
+    // tests that parallel CBC decryption returns the sequential result
+    private static void aes_parallel_test(int Lk) {
+
+        int incorrect=0;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        byte[] bytes = new byte[Lk/8];
+        rand.nextBytes(bytes);
+        aesKey key = new aesKey(bytes);
+        // sizes around the chunk boundaries (4096 blocks)
+        int[] sizes = { 1, 15, 65535, 65536, 65537, 1<<20, (1<<20)+9 };
+        for(int size : sizes) {
+            byte[] data = new byte[size];
+            rand.nextBytes(data);
+            byte[] C  = aes.xifrarAES(data,key);
+            byte[] M1 = aes.desxifrarAES(C,key,aesEngine.TTABLE,pool,Integer.MAX_VALUE);
+            byte[] M2 = aes.desxifrarAES(C,key,aesEngine.TTABLE,pool,0);
+            boolean error = !Arrays.equals(data,M1) || !Arrays.equals(M1,M2);
+            // a wrong key gives a random length: rejected, not zero padded
+            byte[] other = bytes.clone();
+            other[0]^=1;
+            for(int threshold : new int[] { Integer.MAX_VALUE, 0 }) {
+                try {
+                    aes.desxifrarAES(C,new aesKey(other),aesEngine.TTABLE,pool,threshold);
+                    error = true;
+                } catch(IllegalArgumentException e) {
+                }
+            }
+            if(error) incorrect++;
+        }
+        pool.shutdown();
+        // Print results
+        results("Parallel CBC",Lk,sizes.length,incorrect);
+    }
+
+    // tests CTR mode against the JDK, random access and parallel keystream
+    private static void aes_ctr_test(int Lk) {
+
+        int incorrect=0;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for(int i=1; i<max; i++) {
+            byte[] bytes = new byte[Lk/8], IV = new byte[16];
+            rand.nextBytes(bytes);
+            rand.nextBytes(IV);
+            // counter near 2^64 to test carries
+            if(i%2==0) Arrays.fill(IV,8,16,(byte)0xFF);
+            aesKey key = new aesKey(bytes);
+            aesCTR ctr = new aesCTR(key,IV);
+            byte[] data = new byte[i*4099];
+            rand.nextBytes(data);
+            try {
+                Cipher jce = Cipher.getInstance("AES/CTR/NoPadding");
+                jce.init(Cipher.ENCRYPT_MODE,new SecretKeySpec(bytes,"AES"),new IvParameterSpec(IV));
+                byte[] expected = jce.doFinal(data);
+                // whole buffer, sequential and parallel
+                byte[] C1 = new byte[data.length], C2 = new byte[data.length];
+                ctr.process(data,0,C1,0,data.length,0,pool,Integer.MAX_VALUE);
+                ctr.process(data,0,C2,0,data.length,0,pool,0);
+                // random access: a slice starting in the middle of a block
+                int pos = rand.nextInt(data.length), len = data.length-pos;
+                byte[] C3 = new byte[len];
+                ctr.process(data,pos,C3,0,len,pos);
+                boolean error = !Arrays.equals(C1,expected) || !Arrays.equals(C2,expected)
+                             || !Arrays.equals(C3,Arrays.copyOfRange(expected,pos,data.length));
+                // IV + ciphertext round trip
+                if(error || !Arrays.equals(aesCTR.desxifrarCTR(aesCTR.xifrarCTR(data,key),key),data))
+                    incorrect++;
+            } catch(GeneralSecurityException e) {
+                incorrect++;
+            }
+        }
+        pool.shutdown();
+        // Print results
+        results("CTR mode",Lk,max,incorrect);
+    }
+
+    // tests that streams and channels interoperate with xifrarAES/desxifrarAES
+    private static void aes_stream_test(int Lk) {
+
+        int incorrect=0;
+        byte[] bytes = new byte[Lk/8];
+        rand.nextBytes(bytes);
+        aesKey key = new aesKey(bytes);
+        int[] sizes = { 0, 1, 7, 8, 15, 16, 17, 24, 31, 32, 8191, 8192, 8200, 100000 };
+        for(int size : sizes) {
+            byte[] data = new byte[size];
+            rand.nextBytes(data);
+            try {
+                // output stream written in random chunks
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                OutputStream out = new aesCBCOutputStream(bout,key);
+                for(int off=0, len; off<size; off+=len) {
+                    len = Math.min(size-off,rand.nextInt(3000)+1);
+                    if(len==1) out.write(data[off]); else out.write(data,off,len);
+                    if(len%5==0) out.flush();
+                }
+                out.close();
+                boolean error = !Arrays.equals(aes.desxifrarAES(bout.toByteArray(),key),data);
+                // channel
+                bout = new ByteArrayOutputStream();
+                WritableByteChannel ch = new aesCBCChannel(Channels.newChannel(bout),key);
+                ByteBuffer src = ByteBuffer.allocateDirect(size);
+                src.put(data).flip();
+                ch.write(src);
+                ch.close();
+                error |= !Arrays.equals(aes.desxifrarAES(bout.toByteArray(),key),data);
+                // input stream read in random chunks
+                InputStream in = new aesCBCInputStream(new ByteArrayInputStream(aes.xifrarAES(data,key)),key);
+                ByteArrayOutputStream M = new ByteArrayOutputStream();
+                byte[] chunk = new byte[5000];
+                for(int r; (r=in.read(chunk,0,rand.nextInt(chunk.length)+1))>=0; ) M.write(chunk,0,r);
+                error |= !Arrays.equals(M.toByteArray(),data);
+                // truncated ciphertext: every read after the failure fails too
+                byte[] C = aes.xifrarAES(data,key);
+                in = new aesCBCInputStream(new ByteArrayInputStream(C,0,C.length-16),key);
+                for(int k=0; k<3; k++) {
+                    try {
+                        while(in.read(chunk)>=0);
+                        error = true;
+                    } catch(IOException e) {
+                    }
+                }
+                if(error) incorrect++;
+            } catch(IOException e) {
+                incorrect++;
+            }
+        }
+        // Print results
+        results("Stream",Lk,sizes.length,incorrect);
+    }
+
+    // tests memory mapped file encryption against xifrarAES/desxifrarAES
+    private static void aes_file_test(int Lk) {
+
+        int incorrect=0;
+        byte[] bytes = new byte[Lk/8];
+        rand.nextBytes(bytes);
+        aesKey key = new aesKey(bytes);
+        int[] sizes = { 0, 1, 7, 8, 15, 16, 17, 24, 31, 32, (1<<20)+5 };
+        try {
+            Path M = Files.createTempFile("aes",".txt");
+            Path C = Files.createTempFile("aes",".aes");
+            for(int size : sizes) {
+                byte[] data = new byte[size];
+                rand.nextBytes(data);
+                Files.write(M,data);
+                aesFile.xifrarAES(M,C,key);
+                boolean error = !Arrays.equals(aes.desxifrarAES(Files.readAllBytes(C),key),data);
+                Files.write(C,aes.xifrarAES(data,key));
+                aesFile.desxifrarAES(C,M,key);
+                error |= !Arrays.equals(Files.readAllBytes(M),data);
+                // ByteBuffer blocks in both byte orders
+                ByteBuffer buf = ByteBuffer.allocateDirect(32).order(ByteOrder.LITTLE_ENDIAN);
+                byte[] block = new byte[16];
+                rand.nextBytes(block);
+                buf.put(0,block);
+                key.encryptBlock(buf,0,buf,16);
+                key.encryptBlock(block,0,block,0);
+                error |= !ByteBuffer.wrap(block).equals(buf.position(16));
+                if(error) incorrect++;
+            }
+            Files.delete(M);
+            Files.delete(C);
+        } catch(IOException e) {
+            incorrect = sizes.length;
+        }
+        // Print results
+        results("Mapped file",Lk,sizes.length,incorrect);
+    }
+
+    // tests that every record of a batch can be deciphered by desxifrarAES
+    private static void aes_batch_test(int Lk) {
+
+        int incorrect=0;
+        byte[] bytes = new byte[Lk/8];
+        rand.nextBytes(bytes);
+        aesKey key = new aesKey(bytes);
+        // small records (a batch of 0 to 1000 records)
+        List<byte[]> M = new ArrayList<byte[]>();
+        for(int i=0; i<1000; i++) {
+            byte[] data = new byte[i<40 ? i : 20+rand.nextInt(180)];
+            rand.nextBytes(data);
+            M.add(data);
+        }
+        // same records packed in a single buffer
+        int[] from = new int[M.size()+1];
+        for(int i=0; i<M.size(); i++) from[i+1] = from[i]+M.get(i).length;
+        byte[] packed = new byte[from[M.size()]];
+        for(int i=0; i<M.size(); i++) System.arraycopy(M.get(i),0,packed,from[i],M.get(i).length);
+        for(int n=0; n<=M.size(); n+=n<10 ? 1 : 99) {
+            aesBatch B1 = aesBatch.xifrarAES(M.subList(0,n),key);
+            aesBatch B2 = aesBatch.xifrarAES(packed,Arrays.copyOf(from,n+1),key);
+            boolean error = B1.size()!=n || B2.size()!=n;
+            for(int i=0; i<n && !error; i++)
+                error = !Arrays.equals(aes.desxifrarAES(B1.get(i),key),M.get(i))
+                     || !Arrays.equals(aes.desxifrarAES(B2.get(i),key),M.get(i));
+            if(error) incorrect++;
+        }
+        // every engine ciphers the lanes alike (same IVs)
+        aesBatch ref = aesBatch.xifrarAES(M,key,aesIV.counter(7),aesEngine.TTABLE);
+        for(aesEngine e : aesEngines.available())
+            if(!Arrays.equals(aesBatch.xifrarAES(M,key,aesIV.counter(7),e).data(),ref.data())) incorrect++;
+        // Print results
+        results("Batch",Lk,0,incorrect);
+    }
+
+    // tests the IV sources
+    private static void aes_iv_test(int Lk) {
+
+        int incorrect=0;
+        byte[] bytes = new byte[Lk/8];
+        rand.nextBytes(bytes);
+        aesKey key = new aesKey(bytes);
+        byte[] data = new byte[100];
+        rand.nextBytes(data);
+        // counter IVs are reproducible
+        byte[] C1 = aes.xifrarAES(data,key,aesIV.counter(42));
+        byte[] C2 = aes.xifrarAES(data,key,aesIV.counter(42));
+        if(!Arrays.equals(C1,C2) || !Arrays.equals(aes.desxifrarAES(C1,key),data)) incorrect++;
+        // caller IV is the first block
+        byte[] IV = new byte[16];
+        rand.nextBytes(IV);
+        C1 = aes.xifrarAES(data,key,IV);
+        if(!Arrays.equals(Arrays.copyOf(C1,16),IV) || !Arrays.equals(aes.desxifrarAES(C1,key),data)) incorrect++;
+        // secure IVs from several threads are all different
+        final Set<String> IVs = Collections.synchronizedSet(new HashSet<String>());
+        Thread[] threads = new Thread[4];
+        for(int t=0; t<threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                public void run() {
+                    byte[] iv = new byte[16];
+                    for(int i=0; i<1000; i++) {
+                        aesIV.SECURE.nextIV(iv,0,16);
+                        IVs.add(Arrays.toString(iv));
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        try {
+            for(Thread t : threads) t.join();
+        } catch(InterruptedException e) {
+            incorrect++;
+        }
+        if(IVs.size()!=4000) incorrect++;
+        // Print results
+        results("IV source",Lk,0,incorrect);
+    }
+
+    private static void aes_gcm_test(int Lk) {
+
+        int incorrect=0;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        for(int i=1; i<max; i++) {
+            byte[] bytes = new byte[Lk/8];
+            rand.nextBytes(bytes);
+            aesKey key = new aesKey(bytes);
+            aesGCM gcm = new aesGCM(key);
+            // 96 bits IVs and other lengths (J0 from GHASH)
+            byte[] IV  = new byte[i%4==0 ? 1+rand.nextInt(40) : 12];
+            byte[] AAD = new byte[rand.nextInt(50)];
+            byte[] data = new byte[i*2053];
+            rand.nextBytes(IV);
+            rand.nextBytes(AAD);
+            rand.nextBytes(data);
+            try {
+                Cipher jce = Cipher.getInstance("AES/GCM/NoPadding");
+                jce.init(Cipher.ENCRYPT_MODE,new SecretKeySpec(bytes,"AES"),new GCMParameterSpec(128,IV));
+                jce.updateAAD(AAD);
+                byte[] expected = jce.doFinal(data);
+                // one shot
+                byte[] C1 = gcm.xifrar(IV,AAD,data);
+                // streaming with random pieces, in place and in parallel
+                byte[] C2 = Arrays.copyOf(data,data.length+aesGCM.TAG);
+                aesGCM.Session s = gcm.encryptor(IV);
+                for(int a=0; a<AAD.length; ) {
+                    int k = Math.min(AAD.length-a,rand.nextInt(20));
+                    s.updateAAD(AAD,a,k);
+                    a+=k;
+                }
+                for(int d=0; d<data.length; ) {
+                    int k = Math.min(data.length-d,rand.nextInt(3*16*4096));
+                    s.update(C2,d,k,C2,d,pool,0);
+                    d+=k;
+                }
+                s.finish(C2,data.length);
+                boolean error = !Arrays.equals(C1,expected) || !Arrays.equals(C2,expected)
+                             || !Arrays.equals(gcm.desxifrar(IV,AAD,C1),data);
+                // a modified ciphertext, AAD or tag must be rejected
+                byte[] bad = C1.clone();
+                bad[rand.nextInt(bad.length)] ^= 1+rand.nextInt(255);
+                try {
+                    gcm.desxifrar(IV,AAD,bad);
+                    error = true;
+                } catch(AEADBadTagException e) {
+                }
+                // random IV + ciphertext + tag round trip
+                if(error || !Arrays.equals(aesGCM.desxifrarGCM(aesGCM.xifrarGCM(data,key),key),data))
+                    incorrect++;
+            } catch(GeneralSecurityException e) {
+                incorrect++;
+            }
+        }
+        pool.shutdown();
+        // a session refuses text past MAX_TEXT (the counter would wrap):
+        // its length is moved close to the limit
+        aesGCM.Session s = new aesGCM(new aesKey(new byte[Lk/8])).encryptor(new byte[12]);
+        s.skipText(aesGCM.MAX_TEXT-20);
+        byte[] b = new byte[32];
+        s.update(b,0,20,b,0);
+        try {
+            s.update(b,0,1,b,0);
+            incorrect++;
+        } catch(IllegalArgumentException e) {
+        }
+        // Print results
+        results("GCM mode",Lk,max,incorrect);
+    }
+
+    private static void aes_bitslice_test(int Lk) {
+
+        int incorrect=0;
+        byte[] P = hex("00112233445566778899aabbccddeeff");
+        byte[] C = new byte[16], R = new byte[16];
+        // known answer test, single block
+        String[] kat = fips197[Lk/64-2];
+        aesKey key = new aesKey(hex(kat[0]));
+        aesEngine.BITSLICED.encryptBlock(key,P,0,C,0);
+        aesEngine.BITSLICED.decryptBlock(key,C,0,R,0);
+        if(!Arrays.equals(C,hex(kat[1])) || !Arrays.equals(R,P)) incorrect++;
+        // random keys and number of blocks, same output as the T-table
+        for(int i=1; i<max; i++) {
+            byte[] bytes = new byte[Lk/8];
+            rand.nextBytes(bytes);
+            key = new aesKey(bytes);
+            int n = 1+rand.nextInt(200);
+            byte[] data = new byte[16*n+7];
+            rand.nextBytes(data);
+            byte[] C1 = new byte[data.length], C2 = new byte[data.length];
+            aesEngine.TTABLE.encryptBlocks(key,data,7,C1,0,n);
+            aesEngine.BITSLICED.encryptBlocks(key,data,7,C2,0,n);
+            boolean error = !Arrays.equals(C1,C2);
+            aesEngine.BITSLICED.decryptBlocks(key,C2,0,C2,0,n);
+            error |= !Arrays.equals(Arrays.copyOf(C2,16*n),Arrays.copyOfRange(data,7,7+16*n));
+            // modes through the engine
+            byte[] IV = new byte[16];
+            rand.nextBytes(IV);
+            byte[] K1 = aes.xifrarAES(data,key,aesEngine.BITSLICED,IV);
+            error |= !Arrays.equals(K1,aes.xifrarAES(data,key,IV));
+            error |= !Arrays.equals(aes.desxifrarAES(K1,key,aesEngine.BITSLICED),data);
+            new aesCTR(key,IV).process(data,0,C1,0,data.length,0);
+            new aesCTR(key,IV,aesEngine.BITSLICED).process(data,0,C2,0,data.length,0);
+            if(error || !Arrays.equals(C1,C2)) incorrect++;
+        }
+        // Print results
+        results("Bitsliced engine",Lk,max,incorrect);
+    }
+
+    // aesEngine.VECTOR is the vector engine only when vector/aesVector.java
+    // is compiled and run with --add-modules jdk.incubator.vector
+    private static void aes_vector_test(int Lk) {
+
+        int incorrect=0;
+        aesEngine engine = aesEngine.VECTOR;
+        for(int i=1; i<max; i++) {
+            byte[] bytes = new byte[Lk/8];
+            rand.nextBytes(bytes);
+            aesKey key = new aesKey(bytes);
+            int n = 1+rand.nextInt(50);
+            byte[] data = new byte[16*n+5];
+            rand.nextBytes(data);
+            byte[] C1 = new byte[data.length], C2 = new byte[data.length];
+            aesEngine.REFERENCE.encryptBlocks(key,data,5,C1,0,n);
+            engine.encryptBlocks(key,data,5,C2,0,n);
+            boolean error = !Arrays.equals(C1,C2);
+            engine.decryptBlocks(key,C2,0,C2,0,n);
+            error |= !Arrays.equals(Arrays.copyOf(C2,16*n),Arrays.copyOfRange(data,5,5+16*n));
+            // single blocks, in place
+            aesEngine.REFERENCE.encryptBlock(key,data,0,C1,0);
+            engine.encryptBlock(key,data,0,C2,0);
+            engine.decryptBlock(key,C2,0,C2,0);
+            if(error || !Arrays.equals(Arrays.copyOf(C2,16),Arrays.copyOf(data,16))) incorrect++;
+        }
+        // the vectors stay in registers: nothing is allocated once the
+        // loop is warmed up (JIT), as with the block API
+        ThreadMXBean mx = (ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        byte[] bytes = new byte[Lk/8];
+        rand.nextBytes(bytes);
+        aesKey key = new aesKey(bytes);
+        byte[] buf = new byte[16*64];
+        rand.nextBytes(buf);
+        byte[] orig = buf.clone();
+        long allocated = 0;
+        for(int round=0; round<2; round++) {
+            long before = mx.getThreadAllocatedBytes(id);
+            for(int i=0; i<10000; i++) {
+                engine.encryptBlock(key,buf,0,buf,0);
+                engine.decryptBlock(key,buf,0,buf,0);
+                engine.encryptBlocks(key,buf,16,buf,16,63);
+                engine.decryptBlocks(key,buf,16,buf,16,63);
+            }
+            allocated = mx.getThreadAllocatedBytes(id)-before;
+        }
+        if(!Arrays.equals(buf,orig) || allocated>=1024) incorrect++;
+        // Print results
+        results("Vector engine",Lk,max,incorrect,
+                "Engine:      "+ engine,"Allocated:   "+ allocated +" bytes");
+    }
+
+    // tests that a destroyed key can not be used: every engine (also the
+    // ones that keep a copy of the schedule) throws IllegalStateException,
+    // and equals/hashCode do not change under a hash map
+    private static void aes_destroy_test(int Lk) {
+
+        int incorrect=0;
+        List<aesEngine> engines = new ArrayList<aesEngine>(aesEngines.available());
+        engines.add(aesEngines.getDefault());
+        for(int i=1; i<max; i++) {
+            boolean error = false;
+            byte[] bytes = new byte[Lk/8], B = new byte[64];
+            rand.nextBytes(bytes);
+            aesKey key = new aesKey(bytes), zero = new aesKey(new byte[Lk/8]);
+            byte[] C = aes.xifrarAES(B,key);
+            // schedules cached by the engines, in this thread and another
+            Runnable warm = () -> {
+                for(aesEngine e : engines) {
+                    e.encryptBlocks(key,B,0,new byte[64],0,4);
+                    e.decryptBlocks(key,B,0,new byte[64],0,4);
+                }
+            };
+            warm.run();
+            Thread other = new Thread(warm);
+            other.start();
+            try {
+                other.join();
+            } catch(InterruptedException e) {
+                error = true;
+            }
+            // bitsliced and JCE copies of both threads at least
+            int copies = key.copies();
+            int hash = key.hashCode();
+            Set<aesKey> set = new HashSet<aesKey>(Collections.singleton(key));
+            key.destroy();
+            error |= copies<4 || key.copies()!=0;
+            error |= !key.isDestroyed() || key.hashCode()!=hash || !set.contains(key)
+                  || key.equals(zero) || zero.equals(key) || !key.equals(key);
+            for(aesEngine e : engines) {
+                error |= !throwsIllegalState(() -> e.encryptBlock(key,B,0,new byte[16],0))
+                      || !throwsIllegalState(() -> e.decryptBlock(key,B,0,new byte[16],0))
+                      || !throwsIllegalState(() -> e.encryptBlocks(key,B,0,new byte[64],0,4))
+                      || !throwsIllegalState(() -> e.decryptBlocks(key,B,0,new byte[64],0,4));
+            }
+            error |= !throwsIllegalState(() -> aes.xifrarAES(B,key))
+                  || !throwsIllegalState(() -> aes.desxifrarAES(C,key))
+                  || !throwsIllegalState(() -> key.getEncoded());
+            if(error) incorrect++;
+        }
+        // Print results
+        results("Destroyed key",Lk,max,incorrect);
+    }
+
+    private static boolean throwsIllegalState(Runnable r) {
+        try {
+            r.run();
+            return false;
+        } catch(IllegalStateException e) {
+            return true;
+        }
+    }
+
+    // every available engine (and auto) gives the same output in every mode
+    private static void aes_engines_test(int Lk) {
+
+        int incorrect=0;
+        List<aesEngine> engines = new ArrayList<aesEngine>(aesEngines.available());
+        // auto does not wait for its calibration: TTABLE meanwhile
+        aesEngine auto = aesEngines.auto();
+        if(!auto.toString().equals("auto (calibrating)")) incorrect++;
+        engines.add(auto);
+        for(int i=1; i<max; i++) {
+            byte[] bytes = new byte[Lk/8], IV = new byte[16];
+            rand.nextBytes(bytes);
+            rand.nextBytes(IV);
+            aesKey key = new aesKey(bytes);
+            byte[] data = new byte[rand.nextInt(5000)];
+            rand.nextBytes(data);
+            byte[] cbc = aes.xifrarAES(data,key,aesEngine.TTABLE,IV), ctr = new byte[data.length];
+            new aesCTR(key,IV,aesEngine.TTABLE).process(data,0,ctr,0,data.length,0);
+            byte[] gcm = new aesGCM(key,aesEngine.TTABLE).xifrar(Arrays.copyOf(IV,12),null,data);
+            boolean error = false;
+            for(aesEngine e : engines) {
+                byte[] C = new byte[data.length];
+                new aesCTR(key,IV,e).process(data,0,C,0,data.length,0);
+                error |= !Arrays.equals(aes.xifrarAES(data,key,e,IV),cbc)
+                      || !Arrays.equals(aes.desxifrarAES(cbc,key,e),data)
+                      || !Arrays.equals(C,ctr)
+                      || !Arrays.equals(new aesGCM(key,e).xifrar(Arrays.copyOf(IV,12),null,data),gcm);
+            }
+            if(error) incorrect++;
+        }
+        if(aesEngines.byName("jce")!=aesEngine.JCE || aesEngines.getDefault()==null) incorrect++;
+        // Print results
+        results("Engine selection",Lk,max,incorrect,
+                "Engines:     "+ aesEngines.available(),"Calibrated:  "+ auto);
+    }
+
+    private static void aes_cache_test(int Lk) {
+
+        int incorrect=0;
+        aesKeyCache cache = new aesKeyCache(8,1,TimeUnit.HOURS);
+        byte[] data = new byte[100];
+        rand.nextBytes(data);
+        byte[][] keys = new byte[20][Lk/8];
+        for(byte[] k : keys) rand.nextBytes(k);
+        // a hot key: one miss, then hits, same result as a new aesKey
+        byte[] C = cache.xifrarAES(data,keys[0]);
+        for(int i=0; i<10; i++)
+            if(!Arrays.equals(cache.desxifrarAES(C,keys[0]),data)) incorrect++;
+        if(cache.misses()!=1 || cache.hits()!=10) incorrect++;
+        if(!Arrays.equals(aes.desxifrarAES(C,new aesKey(keys[0])),data)) incorrect++;
+        // more keys than entries: evictions, and the evicted keys are zeroed
+        final List<aesKey> used = new ArrayList<aesKey>();
+        for(byte[] k : keys) cache.withKey(k,key -> used.add(key));
+        if(cache.size()>8 || cache.evictions()<12) incorrect++;
+        int zeroed = 0;
+        for(aesKey key : used)
+            if(key.isDestroyed()) zeroed++;
+        if(zeroed!=cache.evictions()) incorrect++;
+        // a key in use is not zeroed when it is evicted, only after
+        byte[] C2 = cache.withKey(keys[1],key -> {
+            cache.clear();
+            return aes.xifrarAES(data,key);
+        });
+        if(!Arrays.equals(aes.desxifrarAES(C2,new aesKey(keys[1])),data) || cache.size()!=0) incorrect++;
+        // unused keys expire
+        aesKeyCache shortLived = new aesKeyCache(8,1,TimeUnit.MILLISECONDS);
+        shortLived.xifrarAES(data,keys[0]);
+        try {
+            Thread.sleep(5);
+        } catch(InterruptedException e) {
+            incorrect++;
+        }
+        shortLived.xifrarAES(data,keys[0]);
+        if(shortLived.misses()!=2 || shortLived.evictions()!=1) incorrect++;
+        // the keys of an idle tenant expire while other keys are used
+        aesKeyCache tenants = new aesKeyCache(16,1,TimeUnit.MILLISECONDS);
+        aesKey idle = tenants.withKey(keys[2],key -> key);
+        try {
+            Thread.sleep(5);
+        } catch(InterruptedException e) {
+            incorrect++;
+        }
+        // a key of another segment (see aesKeyCache.withKey)
+        int h = Arrays.hashCode(keys[2]), i = 3;
+        while(((h^h>>>16)&15)==((Arrays.hashCode(keys[i])^Arrays.hashCode(keys[i])>>>16)&15)) i++;
+        tenants.xifrarAES(data,keys[i]);
+        if(!idle.isDestroyed()) incorrect++;
+        tenants.clear();
+        shortLived.xifrarAES(data,keys[0]);
+        try {
+            Thread.sleep(5);
+        } catch(InterruptedException e) {
+            incorrect++;
+        }
+        shortLived.expire();
+        if(shortLived.size()!=0) incorrect++;
+        // Print results
+        results("Key cache",Lk,0,incorrect,"Cache:       "+ cache);
+    }
+
+    private static void aes_range_test(int Lk) {
+
+        int incorrect=0;
+        Path file = null;
+        try {
+            file = Files.createTempFile("aesTest",".aes");
+            for(int i=1; i<max; i++) {
+                byte[] bytes = new byte[Lk/8];
+                rand.nextBytes(bytes);
+                aesKey key = new aesKey(bytes);
+                byte[] data = new byte[rand.nextInt(3000)];
+                rand.nextBytes(data);
+                byte[] C = aes.xifrarAES(data,key);
+                Files.write(file,C);
+                // random range (can be empty or the whole message)
+                int from = rand.nextInt(data.length+1), len = rand.nextInt(data.length-from+1);
+                byte[] expected = Arrays.copyOfRange(data,from,from+len);
+                ByteBuffer buf = ByteBuffer.allocateDirect(C.length+5);
+                buf.position(5);
+                buf.put(C);
+                buf.position(5);
+                boolean error;
+                try(FileChannel ch = FileChannel.open(file)) {
+                    error = aesCBCRange.length(C,key)!=data.length
+                         || aesCBCRange.length(buf,key)!=data.length
+                         || aesCBCRange.length(ch,key)!=data.length
+                         || !Arrays.equals(aesCBCRange.desxifrarAES(C,key,from,len),expected)
+                         || !Arrays.equals(aesCBCRange.desxifrarAES(buf,key,from,len),expected)
+                         || !Arrays.equals(aesCBCRange.desxifrarAES(ch,key,from,len),expected);
+                }
+                // ranges past the end are rejected
+                try {
+                    aesCBCRange.desxifrarAES(C,key,data.length,1);
+                    error = true;
+                } catch(IndexOutOfBoundsException e) {
+                }
+                if(error) incorrect++;
+            }
+        } catch(IOException e) {
+            incorrect++;
+        } finally {
+            try {
+                if(file!=null) Files.deleteIfExists(file);
+            } catch(IOException e) {
+            }
+        }
+        // Print results
+        results("CBC range",Lk,max,incorrect);
+    }
+
+    // tests aesChunked: parallel round trip, the streaming writer and the
+    // reader over memory and files
+    private static void aes_chunked_test(int Lk) {
+
+        int incorrect=0;
+        Path file = null;
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            file = Files.createTempFile("aesTest",".aesc");
+            for(int i=1; i<max; i++) {
+                byte[] bytes = new byte[Lk/8];
+                rand.nextBytes(bytes);
+                aesKey key = new aesKey(bytes);
+                int chunk = 16*(1+rand.nextInt(16));
+                byte[] data = new byte[rand.nextInt(3000)];
+                rand.nextBytes(data);
+                byte[] C = aesChunked.xifrarAES(data,key,chunk,pool);
+                boolean error = !Arrays.equals(aesChunked.desxifrarAES(C,key,pool),data);
+                // the stream writes the same layout (other IVs)
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                try(aesChunkedOutputStream out = new aesChunkedOutputStream(bos,key,chunk,pool)) {
+                    for(int off=0; off<data.length; ) {
+                        int k = Math.min(data.length-off,rand.nextInt(2*chunk));
+                        out.write(data,off,k);
+                        off+=k;
+                        if(rand.nextInt(4)==0) out.flush();
+                    }
+                }
+                byte[] S = bos.toByteArray();
+                error |= S.length!=C.length || !Arrays.equals(aesChunked.desxifrarAES(S,key),data);
+                Files.write(file,S);
+                int from = rand.nextInt(data.length+1), len = rand.nextInt(data.length-from+1);
+                byte[] expected = Arrays.copyOfRange(data,from,from+len);
+                aesChunked.Reader r = aesChunked.reader(C,key);
+                error |= r.length()!=data.length || !Arrays.equals(r.read(from,len),expected);
+                if(r.chunks()>0) {
+                    int c = rand.nextInt(r.chunks());
+                    error |= !Arrays.equals(r.readChunk(c),Arrays.copyOfRange(data,c*chunk,Math.min(data.length,(c+1)*chunk)));
+                }
+                try(FileChannel ch = FileChannel.open(file)) {
+                    error |= !Arrays.equals(aesChunked.reader(ch,key).read(from,len),expected);
+                }
+                // a wrong key is detected
+                if(data.length>0) {
+                    byte[] other = bytes.clone();
+                    other[0]^=1;
+                    try {
+                        aesChunked.desxifrarAES(C,new aesKey(other));
+                        error = true;
+                    } catch(IllegalArgumentException e) {
+                    }
+                }
+                if(error) incorrect++;
+            }
+        } catch(IOException e) {
+            incorrect++;
+        } finally {
+            pool.shutdown();
+            try {
+                if(file!=null) Files.deleteIfExists(file);
+            } catch(IOException e) {
+            }
+        }
+        // Print results
+        results("Chunked",Lk,max,incorrect);
+    }
+
+    // tests aesMetrics: histogram of a private operation and, with
+    // -Daes.metrics=true, the counters and MBeans of the aes operations
+    private static void aes_metrics_test(int Lk) {
+
+        int incorrect=0;
+        for(int i=1; i<max; i++) {
+            boolean error = false;
+            // latencies in [2^i, 2^(i+1)) go to bucket i
+            aesMetrics.Operation op = new aesMetrics.Operation("test",false);
+            long t = System.nanoTime()-(1L<<20)-rand.nextInt(1<<20);
+            op.record(t,100,2,50);
+            op.record(0,1,0,0);
+            // (bucket 20 or 21, later ones after a pause)
+            long[] h = op.getLatencyHistogram();
+            long slow = 0;
+            for(int b=20; b<h.length; b++) slow+=h[b];
+            error |= op.getCalls()!=2 || op.getBytes()!=101 || op.getBlocks()!=2 || op.getAllocatedBytes()!=50
+                  || op.getTimedCalls()!=1 || slow!=1 || op.getP99Nanos()<op.getTotalNanos();
+            op.reset();
+            error |= op.getCalls()!=0 || op.getP50Nanos()!=0;
+
+            byte[] bytes = new byte[Lk/8];
+            rand.nextBytes(bytes);
+            byte[] data = new byte[rand.nextInt(3000)];
+            rand.nextBytes(data);
+            aesMetrics.reset();
+            aesKey key = new aesKey(bytes);
+            byte[] C = aes.xifrarAES(data,key,aesEngine.TTABLE);
+            byte[] M = aes.desxifrarAES(C,key,aesEngine.TTABLE);
+            long blocks = C.length/16-1;
+            error |= !Arrays.equals(M,data);
+            if(aesMetrics.ENABLED) {
+                error |= aesMetrics.KEY_EXPANSION.getCalls()!=1 || aesMetrics.INV_KEY_EXPANSION.getCalls()!=1
+                      || aesMetrics.PAD.getCalls()!=1 || aesMetrics.XIFRAR.getBytes()!=data.length
+                      || aesMetrics.XIFRAR.getBlocks()!=blocks || aesMetrics.DESXIFRAR.getBytes()!=data.length
+                      || aesMetrics.RIJNDAEL.getBlocks()!=blocks || aesMetrics.INV_RIJNDAEL.getBlocks()!=blocks
+                      || aesMetrics.XIFRAR.getTimedCalls()!=1;
+                try {
+                    Object calls = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                        new javax.management.ObjectName("aes:type=Operation,name=xifrarAES"),"Calls");
+                    error |= !calls.equals(1L);
+                } catch(javax.management.JMException e) {
+                    error = true;
+                }
+            } else {
+                for(aesMetrics.Operation o : aesMetrics.operations()) error |= o.getCalls()!=0;
+            }
+            if(error) incorrect++;
+        }
+        // Print results
+        results("Metrics (enabled: "+ aesMetrics.ENABLED +")",Lk,max,incorrect);
+    }
+
+    // tests the ByteBuffer versions of xifrarAES/desxifrarAES (direct
+    // buffers and in place) and of the engines
+    private static void aes_buffer_test(int Lk) {
+
+        int incorrect=0;
+        for(int i=1; i<max; i++) {
+            byte[] bytes = new byte[Lk/8];
+            rand.nextBytes(bytes);
+            aesKey key = new aesKey(bytes);
+            byte[] data = new byte[rand.nextInt(20000)];
+            rand.nextBytes(data);
+            byte[] IV = new byte[16];
+            rand.nextBytes(IV);
+            byte[] expected = aes.xifrarAES(data,key,aesEngine.TTABLE,IV);
+            // direct buffers, same bytes as the array version
+            int pos = rand.nextInt(16);
+            ByteBuffer M = ByteBuffer.allocateDirect(pos+data.length);
+            M.position(pos);
+            M.put(data).position(pos);
+            ByteBuffer C = ByteBuffer.allocateDirect(pos+expected.length+rand.nextInt(16));
+            C.position(pos);
+            int k = aes.xifrarAES(M,C,key,aesEngines.getDefault(),IV);
+            byte[] c = new byte[k];
+            C.get(pos,c);
+            boolean error = k!=expected.length || !Arrays.equals(c,expected) || M.hasRemaining() || C.position()!=pos+k;
+            C.flip().position(pos);
+            ByteBuffer D = ByteBuffer.allocateDirect(data.length);
+            error |= aes.desxifrarAES(C,D,key)!=data.length || C.hasRemaining();
+            byte[] d = new byte[data.length];
+            D.get(0,d);
+            error |= !Arrays.equals(d,data);
+            // in place
+            ByteBuffer B = ByteBuffer.allocateDirect(pos+expected.length);
+            B.position(pos);
+            B.put(data);
+            B.position(pos).limit(pos+data.length);
+            ByteBuffer out = B.duplicate().limit(B.capacity());
+            aes.xifrarAES(B,out,key,aesEngine.JCE,IV);
+            B.limit(B.capacity()).position(pos);
+            B.get(pos,c);
+            error |= !Arrays.equals(c,expected);
+            aes.desxifrarAES(B,B.duplicate().position(pos),key);
+            B.get(pos,d);
+            error |= !Arrays.equals(d,data);
+            // engines over direct and heap buffers, in place
+            int blocks = data.length/16;
+            byte[] ecb = new byte[16*blocks];
+            aesEngine.TTABLE.encryptBlocks(key,data,0,ecb,0,blocks);
+            for(aesEngine e : aesEngines.available()) {
+                ByteBuffer in = ByteBuffer.allocateDirect(16*blocks).put(0,data,0,16*blocks);
+                e.encryptBlocks(key,in,0,in,0,blocks);
+                byte[] r = new byte[16*blocks];
+                in.get(0,r);
+                ByteBuffer h = ByteBuffer.allocate(16*blocks);
+                e.decryptBlocks(key,in,0,h,0,blocks);
+                error |= !Arrays.equals(r,ecb) || !Arrays.equals(h.array(),Arrays.copyOf(data,16*blocks));
+                try {
+                    e.encryptBlocks(key,in,0,h.asReadOnlyBuffer(),0,blocks);
+                    error |= blocks>0;
+                } catch(ReadOnlyBufferException x) {
+                }
+            }
+            // wrong key
+            if(data.length>0) {
+                byte[] other = bytes.clone();
+                other[0]^=1;
+                try {
+                    aes.desxifrarAES(ByteBuffer.wrap(expected),ByteBuffer.allocate(data.length+32),new aesKey(other));
+                    error = true;
+                } catch(IllegalArgumentException e) {
+                }
+            }
+            if(error) incorrect++;
+        }
+        // Print results
+        results("Buffer",Lk,max,incorrect);
+    }
+
+    // tests aesService: concurrent requests with two keys, wrong keys and
+    // the Unix domain socket
+    private static void aes_service_test(int Lk) {
+
+        int incorrect=0;
+        Path dir = null;
+        try(aesService service = new aesService(16,8,2,aesEngines.getDefault())) {
+            dir = Files.createTempDirectory("aesTest");
+            Path socket = dir.resolve("aes.sock");
+            service.listen(socket);
+            byte[][] bytes = new byte[2][Lk/8];
+            rand.nextBytes(bytes[0]);
+            rand.nextBytes(bytes[1]);
+            aesKey[] keys = { new aesKey(bytes[0]), new aesKey(bytes[1]) };
+            // max-1 requests from 4 threads at once
+            byte[][] data = new byte[max-1][];
+            List<java.util.concurrent.CompletableFuture<byte[]>> enc = Collections.synchronizedList(new ArrayList<>());
+            for(int i=0; i<data.length; i++) {
+                data[i] = new byte[rand.nextInt(100)];
+                rand.nextBytes(data[i]);
+                enc.add(null);
+            }
+            Thread[] th = new Thread[4];
+            for(int t=0; t<th.length; t++) {
+                int id = t;
+                th[t] = new Thread(() -> {
+                    for(int i=id; i<data.length; i+=th.length) enc.set(i,service.xifrarAES(data[i],keys[i%2]));
+                });
+                th[t].start();
+            }
+            for(Thread t : th) t.join();
+            try(aesService.Client client = new aesService.Client(socket)) {
+                for(int i=0; i<data.length; i++) {
+                    byte[] C = enc.get(i).join();
+                    boolean error = !Arrays.equals(aes.desxifrarAES(C,keys[i%2]),data[i])
+                                 || !Arrays.equals(service.desxifrarAES(C,keys[i%2]).join(),data[i])
+                                 || !Arrays.equals(client.desxifrarAES(C,bytes[i%2]),data[i])
+                                 || !Arrays.equals(aes.desxifrarAES(client.xifrarAES(data[i],bytes[i%2]),keys[i%2]),data[i]);
+                    // the other key is rejected
+                    try {
+                        service.desxifrarAES(C,keys[1-i%2]).join();
+                        error = true;
+                    } catch(java.util.concurrent.CompletionException e) {
+                        error |= !(e.getCause() instanceof IllegalArgumentException);
+                    }
+                    try {
+                        client.desxifrarAES(C,bytes[1-i%2]);
+                        error = true;
+                    } catch(IOException e) {
+                    }
+                    if(error) incorrect++;
+                }
+            }
+            if(service.requests()!=6*data.length || service.batches()>service.requests()
+               || service.maxQueueDepth()>16) incorrect++;
+            // frames that are not read: an error and the connection is closed
+            if(!rejected(socket,16,Integer.MAX_VALUE) || !rejected(socket,16,aesService.MAX_FRAME+1)
+               || !rejected(socket,20,16) || !rejected(socket,255,16)) incorrect++;
+            try(aesService.Client client = new aesService.Client(socket)) {
+                client.xifrarAES(data[0],new byte[256]);
+                incorrect++;
+            } catch(IllegalArgumentException e) {
+            }
+            // an Error in a worker completes the futures of its batch
+            aesEngine failing = new aesEngine() {
+                public void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+                    throw new OutOfMemoryError("test");
+                }
+                public void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+                    throw new OutOfMemoryError("test");
+                }
+            };
+            try(aesService broken = new aesService(16,8,1,failing)) {
+                byte[] C = aes.xifrarAES(data[0],keys[0]);
+                for(int i=0; i<3; i++) {
+                    try {
+                        broken.desxifrarAES(C,keys[0]).get(10,TimeUnit.SECONDS);
+                        incorrect++;
+                    } catch(java.util.concurrent.ExecutionException e) {
+                        if(!(e.getCause() instanceof OutOfMemoryError)) incorrect++;
+                    } catch(java.util.concurrent.TimeoutException e) {
+                        incorrect++;
+                    }
+                }
+                // encryption goes through the configured engine too
+                try {
+                    broken.xifrarAES(data[0],keys[0]).get(10,TimeUnit.SECONDS);
+                    incorrect++;
+                } catch(java.util.concurrent.ExecutionException e) {
+                    if(!(e.getCause() instanceof OutOfMemoryError)) incorrect++;
+                } catch(java.util.concurrent.TimeoutException e) {
+                    incorrect++;
+                }
+            }
+            // any RuntimeException of a request is an error frame, the
+            // connection goes on
+            aesEngine encryptFails = new aesEngine() {
+                public void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+                    throw new IllegalStateException("test");
+                }
+                public void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+                    aesEngine.TTABLE.decryptBlock(key,in,inOff,out,outOff);
+                }
+            };
+            try(aesService half = new aesService(16,8,1,encryptFails)) {
+                Path socket3 = dir.resolve("aes3.sock");
+                half.listen(socket3);
+                try(aesService.Client client = new aesService.Client(socket3)) {
+                    try {
+                        client.xifrarAES(data[0],bytes[0]);
+                        incorrect++;
+                    } catch(IOException e) {
+                        if(!"test".equals(e.getMessage())) incorrect++;
+                    }
+                    byte[] C = aes.xifrarAES(data[0],new aesKey(bytes[0]));
+                    if(!Arrays.equals(client.desxifrarAES(C,bytes[0]),data[0])) incorrect++;
+                }
+            }
+            // close ends the idle connections and waits for the queued requests
+            aesService closing = new aesService(16,8,2,aesEngines.getDefault());
+            Path socket2 = dir.resolve("aes2.sock");
+            closing.listen(socket2);
+            try(java.nio.channels.SocketChannel idle = java.nio.channels.SocketChannel.open(java.net.UnixDomainSocketAddress.of(socket2))) {
+                // connected before close
+                try(aesService.Client client = new aesService.Client(socket2)) {
+                    client.xifrarAES(data[0],bytes[0]);
+                }
+                List<java.util.concurrent.CompletableFuture<byte[]>> pending = new ArrayList<>();
+                for(int i=0; i<32; i++) pending.add(closing.xifrarAES(new byte[4096],keys[0]));
+                closing.close();
+                for(java.util.concurrent.CompletableFuture<byte[]> f : pending) if(!f.isDone() || f.isCompletedExceptionally()) incorrect++;
+                if(Channels.newInputStream(idle).read()>=0 || Files.exists(socket2)) incorrect++;
+            }
+        } catch(IOException | InterruptedException e) {
+            incorrect++;
+        } finally {
+            try {
+                if(dir!=null) {
+                    Files.deleteIfExists(dir.resolve("aes3.sock"));
+                    Files.deleteIfExists(dir.resolve("aes2.sock"));
+                    Files.deleteIfExists(dir.resolve("aes.sock"));
+                    Files.deleteIfExists(dir);
+                }
+            } catch(IOException e) {
+            }
+        }
+        // Print results
+        results("Service",Lk,max,incorrect);
+    }
+
+    // sends a xifrarAES frame with a key of keyLength bytes and a data
+    // length n (no data): the service answers status 1 and closes
+    private static boolean rejected(Path socket, int keyLength, int n) throws IOException {
+        try(java.nio.channels.SocketChannel ch = java.nio.channels.SocketChannel.open(java.net.UnixDomainSocketAddress.of(socket))) {
+            // the whole frame in one write: the service closes after the header
+            java.io.DataOutputStream out = new java.io.DataOutputStream(new java.io.BufferedOutputStream(Channels.newOutputStream(ch)));
+            java.io.DataInputStream in = new java.io.DataInputStream(Channels.newInputStream(ch));
+            out.writeByte(1);
+            out.writeByte(keyLength);
+            out.write(new byte[keyLength]);
+            out.writeInt(n);
+            out.flush();
+            int status = in.readUnsignedByte();
+            in.readFully(new byte[in.readInt()]);
+            return status==1 && in.read()<0;
+        }
+    }
+
+    // tests aesGF against aes.prod: tables, packed mixColumn/invMixColumn
+    // and invKeyExpansion
+    private static void aes_gf_test(int Lk) {
+
+        int incorrect=0;
+        byte[][] mix     = {{ 2,3,1,1 }, { 1,2,3,1 }, { 1,1,2,3 }, { 3,1,1,2 }};
+        byte[][] mix_inv = {{ 0x0E,0x0B,0x0D,0x09 }, { 0x09,0x0E,0x0B,0x0D }, { 0x0D,0x09,0x0E,0x0B }, { 0x0B,0x0D,0x09,0x0E }};
+        byte[][] tables  = { aesGF.MUL2, aesGF.MUL3, aesGF.MUL9, aesGF.MULB, aesGF.MULD, aesGF.MULE };
+        byte[] consts    = { 2, 3, 9, 0x0B, 0x0D, 0x0E };
+        for(int i=1; i<max; i++) {
+            boolean error = false;
+            for(int t=0; t<tables.length; t++)
+                for(int x=0; x<256; x++) error |= tables[t][x]!=aes.prod(consts[t],(byte)x);
+            // random state
+            byte[][] estat = new byte[4][4];
+            for(int r=0; r<4; r++) rand.nextBytes(estat[r]);
+            byte[][] m = aes.mixColumn(estat), mi = aes.invMixColumn(estat);
+            for(int c=0; c<4; c++)
+                for(int r=0; r<4; r++) {
+                    byte e = 0, ei = 0;
+                    for(int k=0; k<4; k++) {
+                        e  ^= aes.prod(mix[r][k],estat[k][c]);
+                        ei ^= aes.prod(mix_inv[r][k],estat[k][c]);
+                    }
+                    error |= m[r][c]!=e || mi[r][c]!=ei;
+                }
+            error |= !Arrays.deepEquals(aes.invMixColumn(m),estat);
+            // inverse key schedule: invMixColumn of the middle round keys
+            byte[] key = new byte[Lk/8];
+            rand.nextBytes(key);
+            int Nk = Lk/32, Nr = Nk+6;
+            byte[][][] W = aes.keyExpansion(key,Nk,Nr), InvW = aes.invKeyExpansion(key,Nk,Nr);
+            for(int n=0; n<=Nr; n++)
+                for(int c=0; c<4; c++)
+                    for(int r=0; r<4; r++) {
+                        byte e = W[n][r][c];
+                        if(n>0 && n<Nr) {
+                            e = 0;
+                            for(int k=0; k<4; k++) e ^= aes.prod(mix_inv[r][k],W[n][k][c]);
+                        }
+                        error |= InvW[n][r][c]!=e;
+                    }
+            if(error) incorrect++;
+        }
+        // Print results
+        results("GF(2^8)",Lk,max,incorrect);
+    }
+
+    // tests aesHex against String.format and, with -Daes.trace=true, the
+    // round trace of the reference and T-table rijndael (without it, that
+    // nothing is traced)
+    private static void aes_trace_test(int Lk) {
+
+        int incorrect=0;
+        int Nk = Lk/32, Nr = Nk+6;
+        for(int i=1; i<max; i++) {
+            boolean error = false;
+            // hexadecimal
+            byte[] data = new byte[rand.nextInt(100)];
+            rand.nextBytes(data);
+            int perLine = 1+rand.nextInt(20);
+            StringBuilder hex = new StringBuilder(), lines = new StringBuilder(), message = new StringBuilder();
+            for(int j=0; j<data.length; j++) {
+                hex.append(String.format("%02x",data[j]));
+                if(j%perLine==0) lines.append("\n");
+                lines.append(String.format("%02x ",data[j]));
+                if(j%16==0) message.append("\n");
+                message.append(String.format("%02x",data[j]));
+            }
+            error |= !aesHex.toHex(data).equals(hex.toString())
+                  || !aesHex.lines(data,0,data.length,perLine,true).equals(lines.toString())
+                  || !aes.getMessage(data).equals(message.toString());
+            byte[][] estat = new byte[4][4];
+            StringBuilder state = new StringBuilder();
+            for(int r=0; r<4; r++) {
+                rand.nextBytes(estat[r]);
+                for(int c=0; c<4; c++) state.append(String.format("%02x ",estat[r][c]));
+                state.append("\n");
+            }
+            error |= !aes.stateToString(estat).equals(state.toString());
+
+            // trace of a block ciphered by both rijndael versions
+            byte[] bytes = new byte[Lk/8], P = new byte[16], C = new byte[16], R = new byte[16];
+            rand.nextBytes(bytes);
+            rand.nextBytes(P);
+            if(i==1) {
+                bytes = hex(fips197[Lk/64-2][0]);
+                P = hex("00112233445566778899aabbccddeeff");
+            }
+            aesTrace.clear();
+            aesKey key = new aesKey(bytes);
+            key.encryptBlock(P,0,C,0);
+            byte[][] Cref = aes.rijndael(toState(P),aes.keyExpansion(bytes,Nk,Nr),Nk,Nr);
+            key.decryptBlock(C,0,R,0);
+            byte[][] Rref = aes.invRijndael(toState(C),aes.invKeyExpansion(bytes,Nk,Nr),Nk,Nr);
+            error |= !Arrays.equals(R,P) || !Arrays.deepEquals(Cref,toState(C)) || !Arrays.deepEquals(Rref,toState(P));
+            List<aesTrace.Record> trace = aesTrace.records();
+            if(aesTrace.ENABLED) {
+                // key, enc, key, enc, ikey, dec, ikey, dec
+                int[] types = { aesTrace.KEY, aesTrace.ENCRYPT, aesTrace.KEY, aesTrace.ENCRYPT,
+                                aesTrace.INV_KEY, aesTrace.DECRYPT, aesTrace.INV_KEY, aesTrace.DECRYPT };
+                error |= trace.size()!=types.length*(Nr+1);
+                for(int g=0; g<types.length && !error; g++)
+                    for(int r=0; r<=Nr; r++) {
+                        aesTrace.Record rec = trace.get(g*(Nr+1)+r);
+                        aesTrace.Record first = trace.get(g*(Nr+1));
+                        int round = types[g]==aesTrace.DECRYPT ? Nr-r : r;
+                        error |= rec.type()!=types[g] || rec.round()!=round || rec.rounds()!=Nr || rec.id()!=first.id();
+                    }
+                if(!error) {
+                    // both versions trace the same rounds, round keys in block order
+                    for(int r=0; r<=Nr; r++) {
+                        error |= !Arrays.equals(trace.get(r).state(),trace.get(2*(Nr+1)+r).state())
+                              || !Arrays.equals(trace.get(Nr+1+r).state(),trace.get(3*(Nr+1)+r).state())
+                              || !Arrays.equals(trace.get(4*(Nr+1)+r).state(),trace.get(6*(Nr+1)+r).state())
+                              || !Arrays.equals(trace.get(5*(Nr+1)+r).state(),trace.get(7*(Nr+1)+r).state());
+                    }
+                    error |= !Arrays.equals(trace.get(0).state(),Arrays.copyOf(bytes,16))
+                          || !Arrays.equals(trace.get(2*(Nr+1)-1).state(),C)
+                          || !Arrays.equals(trace.get(6*(Nr+1)-1).state(),P);
+                    if(i==1) {
+                        // FIPS-197 appendix C: state after round 1
+                        String[] r1 = { "89d810e8855ace682d1843d8cb128fe4", "4f63760643e0aa85aff8c9d041fa0de4",
+                                        "4f63760643e0aa85efa7213201a4e705" };
+                        error |= !aesHex.toHex(trace.get(Nr+2).state()).equals(r1[Lk/64-2])
+                              || !trace.get(Nr+2).toString().equals("#"+ trace.get(Nr+2).id() +" enc  r01/"+ Nr +" "+ r1[Lk/64-2]);
+                    }
+                    String[] dump = aesTrace.dump().split("\n");
+                    error |= dump.length!=trace.size() || !dump[5].equals(trace.get(5).toString());
+                }
+            } else {
+                error |= !trace.isEmpty() || !aesTrace.dump().isEmpty();
+            }
+            if(error) incorrect++;
+        }
+        // a full buffer keeps the newest records
+        if(aesTrace.ENABLED) {
+            aesKey key = new aesKey(new byte[Lk/8]);
+            byte[] B = new byte[16];
+            aesTrace.clear();
+            for(int b=0; b<aesTrace.RECORDS/(Nr+1)+2; b++) key.encryptBlock(B,0,B,0);
+            List<aesTrace.Record> trace = aesTrace.records();
+            aesTrace.Record last = trace.get(trace.size()-1);
+            boolean error = trace.size()!=aesTrace.RECORDS || last.round()!=Nr || !Arrays.equals(last.state(),B);
+            for(int r=1; r<trace.size(); r++) error |= trace.get(r).sequence()!=trace.get(r-1).sequence()+1;
+            if(error) incorrect++;
+        }
+        // the 4 block kernels trace the same rounds as one block at a time
+        if(aesTrace.ENABLED) {
+            byte[] bytes = new byte[Lk/8], B = new byte[64], X = new byte[64];
+            rand.nextBytes(bytes);
+            rand.nextBytes(B);
+            aesKey key = new aesKey(bytes);
+            key.decryptBlock(B,0,X,0);
+            aesTrace.clear();
+            key.encryptBlocks(B,0,X,0,4);
+            aesEngine.INTERLEAVED.encryptBlocks(key,B,0,X,0,4);
+            key.decryptBlocks(X,0,B,0,4);
+            aesEngine.INTERLEAVED.decryptBlocks(key,X,0,B,0,4);
+            // states of every block in the order they were traced
+            Map<Integer,List<String>> blocks = new LinkedHashMap<Integer,List<String>>();
+            for(aesTrace.Record rec : aesTrace.records())
+                blocks.computeIfAbsent(rec.id(),k -> new ArrayList<String>())
+                      .add(rec.type() +" "+ rec.round() +" "+ aesHex.toHex(rec.state()));
+            List<List<String>> l = new ArrayList<List<String>>(blocks.values());
+            boolean error = l.size()!=16;
+            for(int b=0; b<12 && !error; b+=b==3 ? 5 : 1)
+                error |= l.get(b).size()!=Nr+1 || !l.get(b).equals(l.get(b+4));
+            if(error) incorrect++;
+        }
+        // Print results
+        results("Trace (enabled: "+ aesTrace.ENABLED +")",Lk,max,incorrect);
+    }
+
+    // estat[row][column] of a block
+    private static byte[][] toState(byte[] b) {
+        byte[][] estat = new byte[4][4];
+        for(int c=0; c<4; c++)
+            for(int r=0; r<4; r++) estat[r][c] = b[4*c+r];
+        return estat;
+    }
+
+    private static byte[] hex(String s) {
+        byte[] b = new byte[s.length()/2];
+        for(int i=0; i<b.length; i++)
+            b[i] = (byte)Integer.parseInt(s.substring(2*i,2*i+2),16);
+        return b;
     }
-} 
+}
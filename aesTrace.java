@@ -0,0 +1,233 @@
+// aesTrace.java
+// Round trace: states of every round and round keys in a ring buffer
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Records the state after every round of rijndael and invRijndael and the
+// round keys of keyExpansion and invKeyExpansion, to debug keys and
+// interoperability without printing anything while ciphering. Off by
+// default, enable with
+//   -Daes.trace=true [-Daes.trace.records=65536]
+// ENABLED is a static final, so when it is false the JIT removes every
+// hook of aes (if(aesTrace.ENABLED) ...) and tracing costs nothing. When
+// enabled a round is one 32 byte record written into a byte[] allocated
+// at startup: no objects and no formatting. Records are turned into text
+// by dump(), with aesHex, when they are read. When the buffer is full the
+// newest records overwrite the oldest ones.
+//
+// Every block and every key expansion has an id, so the rounds of a block
+// can be followed while other threads cipher. Round r is the state after
+// adding round key r: encryption goes from round 0 (input ^ key 0) to Nr
+// (the output), decryption from Nr down to 0 (the plaintext). States and
+// keys are 16 bytes in block order (column by column):
+//   #1 key  r00/10 000102030405060708090a0b0c0d0e0f
+//   #2 enc  r00/10 00102030405060708090a0b0c0d0e0f0
+//   #2 enc  r01/10 89d810e8855ace682d1843d8cb128fe4
+// Only the reference and T-table rijndael are traced (the byte[] kernels,
+// which the ByteBuffer versions run too, and the 4 block kernels of the
+// interleaved engine); the bitsliced, vector and JCE engines are not.
+public final class aesTrace {
+
+    public static final boolean ENABLED = Boolean.getBoolean("aes.trace");
+
+    // record types
+    public static final int KEY = 0, INV_KEY = 1, ENCRYPT = 2, DECRYPT = 3;
+    private static final String[] TYPES = { "key ", "ikey", "enc ", "dec " };
+
+    // record: sequence+1 (8), id (4), type, round, Nr, unused, state (16)
+    static final int RECORD = 32;
+    // number of records, a power of two (none when disabled)
+    static final int RECORDS = ENABLED ? capacity(Integer.getInteger("aes.trace.records",1<<16)) : 0;
+
+    private static final byte[] ring = new byte[RECORDS*RECORD];
+    private static final AtomicLong next = new AtomicLong();
+    private static final AtomicInteger ids = new AtomicInteger();
+    // records before first were cleared
+    private static volatile long first;
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class,ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT  = MethodHandles.byteArrayViewVarHandle(int[].class,ByteOrder.BIG_ENDIAN);
+
+    private aesTrace() {
+    }
+
+    // a traced record, copied out of the buffer
+    public static final class Record {
+        private final long seq;
+        private final int id, type, round, Nr;
+        private final byte[] state;
+
+        private Record(long seq, byte[] r) {
+            this.seq   = seq;
+            this.id    = (int)INT.get(r,8);
+            this.type  = r[12];
+            this.round = r[13];
+            this.Nr    = r[14];
+            this.state = Arrays.copyOfRange(r,16,RECORD);
+        }
+
+        // position in the trace since startup
+        public long sequence() { return seq; }
+        public int id() { return id; }
+        public int type() { return type; }
+        public int round() { return round; }
+        public int rounds() { return Nr; }
+        public byte[] state() { return state.clone(); }
+
+        public String toString() {
+            byte[] line = new byte[LINE];
+            return new String(line,0,format(line,0),StandardCharsets.ISO_8859_1);
+        }
+
+        // "#id type rNN/NN state" into out from o, returns the end offset
+        private int format(byte[] out, int o) {
+            out[o++] = '#';
+            o = digits(id,out,o);
+            out[o++] = ' ';
+            for(int i=0; i<4; i++) out[o++] = (byte)TYPES[type].charAt(i);
+            out[o++] = ' ';
+            out[o++] = 'r';
+            o = twoDigits(round,out,o);
+            out[o++] = '/';
+            o = twoDigits(Nr,out,o);
+            out[o++] = ' ';
+            return aesHex.encode(state,0,16,out,o);
+        }
+    }
+
+    // new id for a block or a key expansion
+    static int id() {
+        return ids.incrementAndGet();
+    }
+
+    // n consecutive new ids (blocks ciphered together), returns the first
+    static int ids(int n) {
+        return ids.addAndGet(n)-n+1;
+    }
+
+    // state of round r of a T-table rijndael, as four packed columns
+    static void round(int type, int id, int r, int Nr, int c0, int c1, int c2, int c3) {
+        long seq = claim(type,id,r,Nr);
+        int p = slot(seq);
+        INT.set(ring,p+16,c0);
+        INT.set(ring,p+20,c1);
+        INT.set(ring,p+24,c2);
+        INT.set(ring,p+28,c3);
+        publish(seq);
+    }
+
+    // state of round r of the reference rijndael (estat[row][column])
+    static void round(int type, int id, int r, int Nr, byte[][] estat) {
+        long seq = claim(type,id,r,Nr);
+        int p = slot(seq);
+        for(int i=0; i<4; i++)
+            for(int j=0; j<4; j++)
+                ring[p+16+4*j+i] = estat[i][j];
+        publish(seq);
+    }
+
+    // the Nr+1 round keys of a key expansion (W[round][row][column])
+    static void keys(int type, byte[][][] W, int Nr) {
+        int id = id();
+        for(int r=0; r<=Nr; r++) round(type,id,r,Nr,W[r]);
+    }
+
+    // records in the buffer, oldest first. Records being written or
+    // overwritten while they are copied are left out.
+    public static List<Record> records() {
+        List<Record> res = new ArrayList<Record>();
+        long end = next.get();
+        byte[] r = new byte[RECORD];
+        for(long seq=start(end); seq<end; seq++)
+            if(copy(seq,r)) res.add(new Record(seq,r));
+        return res;
+    }
+
+    // records() as text, a line per record
+    public static String dump() {
+        List<Record> records = records();
+        byte[] out = new byte[records.size()*(LINE+1)];
+        int o = 0;
+        for(Record rec : records) {
+            o = rec.format(out,o);
+            out[o++] = '\n';
+        }
+        return new String(out,0,o,StandardCharsets.ISO_8859_1);
+    }
+
+    // records traced from now on only
+    public static void clear() {
+        first = next.get();
+    }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    // longest line of a record: #, 10 digits, type, round and 32 digits
+    private static final int LINE = 1+10+1+4+1+6+1+32;
+
+    private static int capacity(int records) {
+        return Integer.highestOneBit(Math.min(Math.max(records,16),1<<26));
+    }
+
+    private static int slot(long seq) {
+        return (int)(seq&(RECORDS-1))*RECORD;
+    }
+
+    // takes the next record and writes its header; the record is marked
+    // as being written (sequence 0) until publish
+    private static long claim(int type, int id, int r, int Nr) {
+        long seq = next.getAndIncrement();
+        int p = slot(seq);
+        LONG.setOpaque(ring,p,0L);
+        VarHandle.storeStoreFence();
+        INT.set(ring,p+8,id);
+        ring[p+12] = (byte)type;
+        ring[p+13] = (byte)r;
+        ring[p+14] = (byte)Nr;
+        return seq;
+    }
+
+    // the state is written, readers can copy the record
+    private static void publish(long seq) {
+        LONG.setRelease(ring,slot(seq),seq+1);
+    }
+
+    private static long start(long end) {
+        return Math.max(first,end-RECORDS);
+    }
+
+    // copies record seq into r if it is complete and still in the buffer
+    private static boolean copy(long seq, byte[] r) {
+        int p = slot(seq);
+        if((long)LONG.getAcquire(ring,p)!=seq+1) return false;
+        System.arraycopy(ring,p,r,0,RECORD);
+        VarHandle.loadLoadFence();
+        return (long)LONG.getOpaque(ring,p)==seq+1;
+    }
+
+    private static int digits(int v, byte[] out, int o) {
+        String s = Integer.toUnsignedString(v);
+        for(int i=0; i<s.length(); i++) out[o++] = (byte)s.charAt(i);
+        return o;
+    }
+
+    private static int twoDigits(int v, byte[] out, int o) {
+        out[o]   = (byte)('0'+v/10);
+        out[o+1] = (byte)('0'+v%10);
+        return o+2;
+    }
+} // END_CLASS
@@ -0,0 +1,70 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// 1000 records of 20-200 bytes: one xifrarAES call per record against a
+// single aesBatch call. Scores are records per second.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class aesBatchBench {
+
+    static final int RECORDS = 1000;
+
+    static final MethodHandle NEW_KEY   = aesHandles.constructor("aesKey",byte[].class);
+    static final MethodHandle XIFRAR_K  = aesHandles.method("aes","xifrarAES",byte[].class,byte[].class,aesHandles.type("aesKey"));
+    static final MethodHandle BATCH     = aesHandles.method("aesBatch","xifrarAES",aesHandles.type("aesBatch"),List.class,aesHandles.type("aesKey"));
+
+    @Param({ "128", "256" })
+    int Lk;
+
+    Object key;
+    List<byte[]> M;
+
+    @Setup
+    public void setup() throws Throwable {
+        Random rand = new Random(1);
+        byte[] keyBytes = new byte[Lk/8];
+        rand.nextBytes(keyBytes);
+        key = NEW_KEY.invokeExact((Object)keyBytes);
+        M = new ArrayList<byte[]>();
+        for(int i=0; i<RECORDS; i++) {
+            byte[] m = new byte[20+rand.nextInt(181)];
+            rand.nextBytes(m);
+            M.add(m);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void xifrarAES(Blackhole bh) throws Throwable {
+        for(byte[] m : M) bh.consume(XIFRAR_K.invokeExact((Object)m,key));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public Object batch() throws Throwable {
+        return BATCH.invokeExact((Object)M,key);
+    }
+}
@@ -0,0 +1,73 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Bulk ECB blocks through each aesEngine (the multi-block calls used by
+// the CTR keystream and CBC decryption). Scores are blocks per second.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = { "--add-modules", "jdk.incubator.vector" })
+@State(Scope.Thread)
+public class aesEngineBench {
+
+    // 4 groups of 64 blocks (bitsliced engine), 64 vectors of 512 bits
+    static final int BLOCKS = 256;
+
+    static final MethodHandle NEW_KEY        = aesHandles.constructor("aesKey",byte[].class);
+    static final MethodHandle ENCRYPT_BLOCKS = aesHandles.virtual("aesEngine","encryptBlocks",void.class,aesHandles.type("aesKey"),
+                                                                  byte[].class,int.class,byte[].class,int.class,int.class);
+    static final MethodHandle DECRYPT_BLOCKS = aesHandles.virtual("aesEngine","decryptBlocks",void.class,aesHandles.type("aesKey"),
+                                                                  byte[].class,int.class,byte[].class,int.class,int.class);
+
+    // VECTOR is TTABLE when the vector engine can not be loaded
+    @Param({ "REFERENCE", "TTABLE", "INTERLEAVED", "BITSLICED", "VECTOR", "JCE" })
+    String engine;
+
+    @Param({ "128", "256" })
+    int Lk;
+
+    Object eng, key;
+    byte[] buf;
+
+    @Setup
+    public void setup() throws Throwable {
+        Random rand = new Random(1);
+        byte[] keyBytes = new byte[Lk/8];
+        rand.nextBytes(keyBytes);
+        key = NEW_KEY.invokeExact((Object)keyBytes);
+        eng = aesHandles.field("aesEngine",engine);
+        buf = new byte[16*BLOCKS];
+        rand.nextBytes(buf);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public byte[] encryptBlocks() throws Throwable {
+        ENCRYPT_BLOCKS.invokeExact(eng,key,(Object)buf,0,(Object)buf,0,BLOCKS);
+        return buf;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public byte[] decryptBlocks() throws Throwable {
+        DECRYPT_BLOCKS.invokeExact(eng,key,(Object)buf,0,(Object)buf,0,BLOCKS);
+        return buf;
+    }
+}
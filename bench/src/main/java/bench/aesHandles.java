@@ -0,0 +1,69 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+// The aes sources are in the default package, which can not be imported
+// from a named package (and JMH does not accept benchmarks in the default
+// package), so benchmarks call them through method handles. Handles are
+// erased to Object parameters and stored in static final fields: called
+// with invokeExact they are inlined by the JIT like a direct call.
+final class aesHandles {
+
+    private aesHandles() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch(ClassNotFoundException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // static method (private ones too) of class cls
+    static MethodHandle method(String cls, String name, Class<?> ret, Class<?>... params) {
+        try {
+            Class<?> c = type(cls);
+            return erase(MethodHandles.privateLookupIn(c,MethodHandles.lookup())
+                                      .findStatic(c,name,MethodType.methodType(ret,params)));
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // instance method of class cls, the receiver is the first parameter
+    static MethodHandle virtual(String cls, String name, Class<?> ret, Class<?>... params) {
+        try {
+            Class<?> c = type(cls);
+            return erase(MethodHandles.privateLookupIn(c,MethodHandles.lookup())
+                                      .findVirtual(c,name,MethodType.methodType(ret,params)));
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    static MethodHandle constructor(String cls, Class<?>... params) {
+        try {
+            Class<?> c = type(cls);
+            return erase(MethodHandles.privateLookupIn(c,MethodHandles.lookup())
+                                      .findConstructor(c,MethodType.methodType(void.class,params)));
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    // public static field of class cls (engines)
+    static Object field(String cls, String name) {
+        try {
+            return type(cls).getField(name).get(null);
+        } catch(ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static MethodHandle erase(MethodHandle h) {
+        return h.asType(h.type().erase());
+    }
+}
@@ -0,0 +1,112 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// End to end xifrarAES/desxifrarAES and padding. The megabytes counter
+// gives the throughput in MB/s next to ops/s.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class aesModesBench {
+
+    static final MethodHandle XIFRAR     = aesHandles.method("aes","xifrarAES",byte[].class,byte[].class,BigInteger.class,int.class);
+    static final MethodHandle DESXIFRAR  = aesHandles.method("aes","desxifrarAES",byte[].class,byte[].class,BigInteger.class,int.class);
+    static final MethodHandle XIFRAR_K   = aesHandles.method("aes","xifrarAES",byte[].class,byte[].class,aesHandles.type("aesKey"));
+    static final MethodHandle DESXIFRAR_K= aesHandles.method("aes","desxifrarAES",byte[].class,byte[].class,aesHandles.type("aesKey"));
+    static final MethodHandle NEW_KEY    = aesHandles.constructor("aesKey",byte[].class);
+    static final MethodHandle PAD        = aesHandles.method("aes","IVpadMessage",byte[].class,byte[].class,byte[].class);
+    static final MethodHandle GET_MESSAGE= aesHandles.method("aes","getMessage",String.class,byte[].class);
+
+    @Param({ "16", "1024", "65536", "16777216" })
+    int size;
+
+    @Param({ "128", "192", "256" })
+    int Lk;
+
+    BigInteger K;
+    Object key;
+    byte[] M, C, IV;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws Throwable {
+        Random rand = new Random(1);
+        byte[] keyBytes = new byte[Lk/8];
+        rand.nextBytes(keyBytes);
+        K   = new BigInteger(1,keyBytes);
+        key = NEW_KEY.invokeExact((Object)keyBytes);
+        M   = new byte[size];
+        rand.nextBytes(M);
+        IV  = new byte[16];
+        rand.nextBytes(IV);
+        C   = (byte[])(Object)XIFRAR.invokeExact((Object)M,(Object)K,Lk);
+    }
+
+    @Benchmark
+    public Object xifrarAES(Bytes bytes) throws Throwable {
+        bytes.megabytes += size/1048576.0;
+        return XIFRAR.invokeExact((Object)M,(Object)K,Lk);
+    }
+
+    @Benchmark
+    public Object desxifrarAES(Bytes bytes) throws Throwable {
+        bytes.megabytes += size/1048576.0;
+        return DESXIFRAR.invokeExact((Object)C,(Object)K,Lk);
+    }
+
+    // same with a prepared key (no key schedule per call)
+    @Benchmark
+    public Object xifrarAESPreparedKey(Bytes bytes) throws Throwable {
+        bytes.megabytes += size/1048576.0;
+        return XIFRAR_K.invokeExact((Object)M,key);
+    }
+
+    @Benchmark
+    public Object desxifrarAESPreparedKey(Bytes bytes) throws Throwable {
+        bytes.megabytes += size/1048576.0;
+        return DESXIFRAR_K.invokeExact((Object)C,key);
+    }
+
+    @Benchmark
+    public Object IVpadMessage(Bytes bytes) throws Throwable {
+        bytes.megabytes += size/1048576.0;
+        return PAD.invokeExact((Object)M,(Object)IV);
+    }
+
+    // hex dump of the message (diagnostics), Lk does not matter
+    @Benchmark
+    public Object getMessage(Bytes bytes) throws Throwable {
+        bytes.megabytes += size/1048576.0;
+        return GET_MESSAGE.invokeExact((Object)M);
+    }
+}
@@ -0,0 +1,123 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Key schedule, single block and round primitives of aes.java.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class aesPrimitivesBench {
+
+    static final MethodHandle KEY_EXPANSION     = aesHandles.method("aes","keyExpansion",byte[][][].class,BigInteger.class,int.class,int.class);
+    static final MethodHandle INV_KEY_EXPANSION = aesHandles.method("aes","invKeyExpansion",byte[][][].class,BigInteger.class,int.class,int.class);
+    static final MethodHandle NEW_KEY           = aesHandles.constructor("aesKey",byte[].class);
+    static final MethodHandle RIJNDAEL          = aesHandles.method("aes","rijndael",byte[][].class,byte[][].class,byte[][][].class,int.class,int.class);
+    static final MethodHandle INV_RIJNDAEL      = aesHandles.method("aes","invRijndael",byte[][].class,byte[][].class,byte[][][].class,int.class,int.class);
+    static final MethodHandle ENCRYPT_BLOCK     = aesHandles.virtual("aesKey","encryptBlock",void.class,byte[].class,int.class,byte[].class,int.class);
+    static final MethodHandle DECRYPT_BLOCK     = aesHandles.virtual("aesKey","decryptBlock",void.class,byte[].class,int.class,byte[].class,int.class);
+    static final MethodHandle MIX_COLUMN        = aesHandles.method("aes","mixColumn",byte[][].class,byte[][].class);
+    static final MethodHandle INV_MIX_COLUMN    = aesHandles.method("aes","invMixColumn",byte[][].class,byte[][].class);
+    static final MethodHandle PROD              = aesHandles.method("aes","prod",byte.class,byte.class,byte.class);
+
+    @Param({ "128", "192", "256" })
+    int Lk;
+
+    int Nk, Nr;
+    BigInteger K;
+    byte[] keyBytes, block;
+    byte[][] estat;
+    byte[][][] W, InvW;
+    Object key;
+    byte a, b;
+
+    @Setup
+    public void setup() throws Throwable {
+        Random rand = new Random(1);
+        Nk = Lk/32;
+        Nr = Nk+6;
+        keyBytes = new byte[Lk/8];
+        rand.nextBytes(keyBytes);
+        K = new BigInteger(1,keyBytes);
+        key = NEW_KEY.invokeExact((Object)keyBytes);
+        W = (byte[][][])(Object)KEY_EXPANSION.invokeExact((Object)K,Nk,Nr);
+        InvW = (byte[][][])(Object)INV_KEY_EXPANSION.invokeExact((Object)K,Nk,Nr);
+        block = new byte[16];
+        rand.nextBytes(block);
+        estat = new byte[4][4];
+        for(int i=0; i<4; i++) rand.nextBytes(estat[i]);
+        a = (byte)rand.nextInt();
+        b = (byte)rand.nextInt();
+    }
+
+    @Benchmark
+    public Object keyExpansion() throws Throwable {
+        return KEY_EXPANSION.invokeExact((Object)K,Nk,Nr);
+    }
+
+    @Benchmark
+    public Object invKeyExpansion() throws Throwable {
+        return INV_KEY_EXPANSION.invokeExact((Object)K,Nk,Nr);
+    }
+
+    // both schedules, packed for the T-table engine
+    @Benchmark
+    public Object preparedKey() throws Throwable {
+        return NEW_KEY.invokeExact((Object)keyBytes);
+    }
+
+    @Benchmark
+    public Object rijndael() throws Throwable {
+        return RIJNDAEL.invokeExact((Object)estat,(Object)W,Nk,Nr);
+    }
+
+    @Benchmark
+    public Object invRijndael() throws Throwable {
+        return INV_RIJNDAEL.invokeExact((Object)estat,(Object)InvW,Nk,Nr);
+    }
+
+    @Benchmark
+    public byte[] encryptBlock() throws Throwable {
+        ENCRYPT_BLOCK.invokeExact(key,(Object)block,0,(Object)block,0);
+        return block;
+    }
+
+    @Benchmark
+    public byte[] decryptBlock() throws Throwable {
+        DECRYPT_BLOCK.invokeExact(key,(Object)block,0,(Object)block,0);
+        return block;
+    }
+
+    @Benchmark
+    public Object mixColumn() throws Throwable {
+        return MIX_COLUMN.invokeExact((Object)estat);
+    }
+
+    @Benchmark
+    public Object invMixColumn() throws Throwable {
+        return INV_MIX_COLUMN.invokeExact((Object)estat);
+    }
+
+    // one GF(2^8) product (mixColumn does 64 of them)
+    @Benchmark
+    public byte prod() throws Throwable {
+        return (byte)PROD.invokeExact(a,b);
+    }
+}
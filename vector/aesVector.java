@@ -0,0 +1,201 @@
+// aesVector.java
+// SIMD engine with the Java Vector API (jdk.incubator.vector)
+
+// Criptografia
+// Facultat d'Informatica de Barcelona
+// http://www.fib.upc.es
+
+import java.util.Arrays;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+// Every vector holds several whole blocks (4 with 512 bits vectors) and
+// the rounds of rijndael are lane operations over all of them:
+//   - addRoundKey xors the round key repeated once per block
+//   - shiftRow is a constant byte shuffle
+//   - mixColumn rotates the columns with shuffles and does xtime with
+//     shifts and a masked xor of 0x1B
+//   - byteSub looks the sbox up with selectFrom over slices of the table
+//
+// Needs the incubator module, compile and run with it:
+//   javac --add-modules jdk.incubator.vector *.java vector/*.java
+//   java --add-modules jdk.incubator.vector aesTest
+// Do not use directly, aesEngine.VECTOR loads it when the module is
+// present and falls back to the T-table engine otherwise.
+final class aesVector implements aesEngine {
+
+    private static final VectorSpecies<Byte> S = ByteVector.SPECIES_PREFERRED;
+    // bytes per vector and blocks per vector
+    private static final int L = S.length(), B = L/16;
+    // sbox slices: lanes of the index used by selectFrom (log2 L)
+    private static final int BITS = Integer.numberOfTrailingZeros(L);
+
+    private static final VectorShuffle<Byte> SHIFT, INV_SHIFT, ROT1, ROT2, ROT3;
+    private static final ByteVector[] SBOX = new ByteVector[256/L], INV_SBOX = new ByteVector[256/L];
+
+    static {
+        if(L<16 || 256%L!=0) throw new IllegalStateException("vector size "+ L);
+        int[] shift = new int[L], inv = new int[L], r1 = new int[L], r2 = new int[L], r3 = new int[L];
+        for(int b=0; b<L; b+=16)
+            for(int j=0; j<4; j++)
+                for(int i=0; i<4; i++) {
+                    // byte i of column j is b+4j+i
+                    shift[b+4*j+i] = b+4*((j+i)&3)+i;
+                    inv[b+4*j+i]   = b+4*((j+3*i)&3)+i;
+                    r1[b+4*j+i]    = b+4*j+((i+1)&3);
+                    r2[b+4*j+i]    = b+4*j+((i+2)&3);
+                    r3[b+4*j+i]    = b+4*j+((i+3)&3);
+                }
+        SHIFT     = VectorShuffle.fromArray(S,shift,0);
+        INV_SHIFT = VectorShuffle.fromArray(S,inv,0);
+        ROT1      = VectorShuffle.fromArray(S,r1,0);
+        ROT2      = VectorShuffle.fromArray(S,r2,0);
+        ROT3      = VectorShuffle.fromArray(S,r3,0);
+        for(int t=0; t<256/L; t++) {
+            SBOX[t]     = ByteVector.fromArray(S,aes.sbox,t*L);
+            INV_SBOX[t] = ByteVector.fromArray(S,aes.invsb,t*L);
+        }
+    }
+
+    // round keys (repeated B times, round r from L*r) of the last key used
+    // by each thread, zeroed when that key is destroyed, and a vector sized
+    // buffer for the last blocks
+    private static final class Scratch implements aesKey.Copy {
+        final byte[] buf = new byte[L];
+        volatile aesKey key;
+        byte[] rk;
+
+        public synchronized void wipe(aesKey k) {
+            if(key!=k) return;
+            key = null;
+            Arrays.fill(rk,(byte)0);
+        }
+    }
+
+    private final ThreadLocal<Scratch> local = ThreadLocal.withInitial(Scratch::new);
+
+    aesVector() {
+    }
+
+    public void encryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+        encryptBlocks(key,in,inOff,out,outOff,1);
+    }
+
+    public void decryptBlock(aesKey key, byte[] in, int inOff, byte[] out, int outOff) {
+        decryptBlocks(key,in,inOff,out,outOff,1);
+    }
+
+    public void encryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        Scratch sc = scratch(key);
+        int full = count-count%B;
+        for(int i=0; i<full; i+=B, inOff+=L, outOff+=L)
+            encrypt(in,inOff,out,outOff,sc.rk,key.Nr);
+        if(full<count) {
+            System.arraycopy(in,inOff,sc.buf,0,16*(count-full));
+            encrypt(sc.buf,0,sc.buf,0,sc.rk,key.Nr);
+            System.arraycopy(sc.buf,0,out,outOff,16*(count-full));
+        }
+    }
+
+    public void decryptBlocks(aesKey key, byte[] in, int inOff, byte[] out, int outOff, int count) {
+        Scratch sc = scratch(key);
+        int full = count-count%B;
+        for(int i=0; i<full; i+=B, inOff+=L, outOff+=L)
+            decrypt(in,inOff,out,outOff,sc.rk,key.Nr);
+        if(full<count) {
+            System.arraycopy(in,inOff,sc.buf,0,16*(count-full));
+            decrypt(sc.buf,0,sc.buf,0,sc.rk,key.Nr);
+            System.arraycopy(sc.buf,0,out,outOff,16*(count-full));
+        }
+    }
+
+    public String toString() { return "vector-"+ 8*L; }
+
+    /* ************************* */
+    /* PRIVATE AUXILIARY METHODS */
+    /* ************************* */
+
+    private Scratch scratch(aesKey key) {
+        key.check();
+        Scratch sc = local.get();
+        if(sc.key!=key) {
+            synchronized(sc) {
+                key.copied(sc);
+                byte[] rk = new byte[L*(key.Nr+1)];
+                for(int n=0; n<=key.Nr; n++)
+                    for(int k=0; k<L; k++) rk[L*n+k] = (byte)(key.rk[4*n+(k&15)/4]>>>(24-8*(k&3)));
+                sc.rk  = rk;
+                sc.key = key;
+            }
+        }
+        return sc;
+    }
+
+    // The vector must stay in registers: it is loaded and stored here (a
+    // vector given to or returned by a call that is not inlined is boxed
+    // on the heap) and the last round shares the loop, so the JIT parses
+    // byteSub once per method and stays under its inlining node limit.
+    private static void encrypt(byte[] in, int inOff, byte[] out, int outOff, byte[] rk, int Nr) {
+        ByteVector a = ByteVector.fromArray(S,in,inOff).lanewise(VectorOperators.XOR,key(rk,0));
+        for(int r=1; r<=Nr; r++) {
+            a = byteSub(a,SBOX).rearrange(SHIFT);
+            if(r<Nr) a = mixColumn(a);
+            a = a.lanewise(VectorOperators.XOR,key(rk,r));
+        }
+        a.intoArray(out,outOff);
+    }
+
+    // straight inverse cipher (forward round keys in reverse order)
+    private static void decrypt(byte[] in, int inOff, byte[] out, int outOff, byte[] rk, int Nr) {
+        ByteVector a = ByteVector.fromArray(S,in,inOff).lanewise(VectorOperators.XOR,key(rk,Nr));
+        for(int r=Nr-1; r>=0; r--) {
+            a = byteSub(a.rearrange(INV_SHIFT),INV_SBOX).lanewise(VectorOperators.XOR,key(rk,r));
+            if(r>0) a = invMixColumn(a);
+        }
+        a.intoArray(out,outOff);
+    }
+
+    // round key r
+    private static ByteVector key(byte[] rk, int r) {
+        return ByteVector.fromArray(S,rk,L*r);
+    }
+
+    // the high bits of every byte select the slice of the table, the low
+    // BITS bits the lane inside it
+    private static ByteVector byteSub(ByteVector a, ByteVector[] box) {
+        ByteVector idx = a.and((byte)(L-1));
+        ByteVector res = idx.selectFrom(box[0]);
+        if(box.length>1) {
+            ByteVector hi = a.lanewise(VectorOperators.LSHR,BITS);
+            for(int t=1; t<box.length; t++) {
+                VectorMask<Byte> m = hi.eq((byte)t);
+                res = res.blend(idx.selectFrom(box[t]),m);
+            }
+        }
+        return res;
+    }
+
+    // b_i = xtime(a_i ^ a_i+1) ^ a_i+1 ^ a_i+2 ^ a_i+3
+    private static ByteVector mixColumn(ByteVector a) {
+        ByteVector a1 = a.rearrange(ROT1);
+        return xtime(a.lanewise(VectorOperators.XOR,a1))
+               .lanewise(VectorOperators.XOR,a1)
+               .lanewise(VectorOperators.XOR,a.rearrange(ROT2))
+               .lanewise(VectorOperators.XOR,a.rearrange(ROT3));
+    }
+
+    // invMixColumn = mixColumn after a_i ^= xtime(xtime(a_i ^ a_i+2))
+    private static ByteVector invMixColumn(ByteVector a) {
+        ByteVector u = xtime(xtime(a.lanewise(VectorOperators.XOR,a.rearrange(ROT2))));
+        return mixColumn(a.lanewise(VectorOperators.XOR,u));
+    }
+
+    // 2*a: shift left and xor 0x1B where the high bit was set
+    private static ByteVector xtime(ByteVector a) {
+        return a.lanewise(VectorOperators.LSHL,1)
+                .lanewise(VectorOperators.XOR,a.lanewise(VectorOperators.ASHR,7).and((byte)0x1B));
+    }
+} // END_CLASS